@@ -0,0 +1,101 @@
+package com.batch.escalog.benchmarks;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import com.batch.escalog.LogFmtMarker;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds the events, markers and exceptions used by the benchmarks
+ */
+final class BenchmarkEvents
+{
+    /**
+     * Values that never need quotes
+     */
+    static final String[] CLEAN_VALUES = { "value", "42", "john.doe@example.com", "/api/users", "0.5" };
+
+    /**
+     * Values that need quotes and escaping
+     */
+    static final String[] ESCAPED_VALUES = { "a value with spaces", "a \"quoted\" value", "multi\nline\tvalue", "back\\slash", "élément" };
+
+    private BenchmarkEvents() {}
+
+// ----------------------------------->
+
+    static String[] values(String kind)
+    {
+        return "escaped".equals(kind) ? ESCAPED_VALUES : CLEAN_VALUES;
+    }
+
+    /**
+     * Returns a marker with the given number of key-values, null if size is 0
+     */
+    static LogFmtMarker marker(int size, String[] values)
+    {
+        if ( size == 0 )
+        {
+            return null;
+        }
+
+        LogFmtMarker marker = new LogFmtMarker();
+        for ( int i = 0; i < size; i++ )
+        {
+            marker.and("key" + i, values[ i % values.length ]);
+        }
+        return marker;
+    }
+
+    static Map<String, String> mdc(int size, String[] values)
+    {
+        Map<String, String> mdc = new HashMap<>();
+        for ( int i = 0; i < size; i++ )
+        {
+            mdc.put("mdc" + i, values[ i % values.length ]);
+        }
+        return mdc;
+    }
+
+    static ILoggingEvent event(LoggerContext context, LogFmtMarker marker, Map<String, String> mdc, Throwable throwable)
+    {
+        Logger logger = context.getLogger("com.batch.escalog.benchmarks.Service");
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "Request processed in {} ms", throwable, new Object[] { 12 });
+        event.setMarker(marker);
+        event.setMDCPropertyMap(mdc);
+        event.setCallerData(new StackTraceElement[] { new StackTraceElement("com.batch.escalog.benchmarks.Service", "process", "Service.java", 42) });
+        event.setThreadName("http-worker-12");
+        return event;
+    }
+
+    /**
+     * Returns an exception thrown at the given stack depth, with the given number of causes
+     */
+    static Throwable exception(int stackDepth, int causes)
+    {
+        Throwable cause = causes > 0 ? exception(stackDepth, causes - 1) : null;
+        try
+        {
+            throwAt(stackDepth, cause);
+            throw new AssertionError();
+        }
+        catch ( IllegalStateException e )
+        {
+            return e;
+        }
+    }
+
+    private static void throwAt(int depth, Throwable cause)
+    {
+        if ( depth <= 0 )
+        {
+            throw new IllegalStateException("Something went \"wrong\"", cause);
+        }
+        throwAt(depth - 1, cause);
+    }
+}
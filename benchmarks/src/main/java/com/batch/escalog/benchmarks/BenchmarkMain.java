@@ -0,0 +1,27 @@
+package com.batch.escalog.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected on the command line (same options as JMH), always with the GC profiler,
+ * so that the results report the allocations per operation (gc.alloc.rate.norm) next to the ops/s
+ */
+public final class BenchmarkMain
+{
+    private BenchmarkMain() {}
+
+    public static void main(String[] args) throws Exception
+    {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if ( options.shouldHelp() || options.shouldList() || options.shouldListProfilers() || options.shouldListResultFormats() )
+        {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        new Runner(new OptionsBuilder().parent(options).addProfiler(GCProfiler.class).build()).run();
+    }
+}
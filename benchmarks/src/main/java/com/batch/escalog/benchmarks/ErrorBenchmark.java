@@ -0,0 +1,66 @@
+package com.batch.escalog.benchmarks;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import com.batch.escalog.LogFmtEncoder;
+import com.batch.escalog.LogFmtLayout;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders an event with an exception, with deep stacks and causes, with or without a limit of stack frames
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ErrorBenchmark
+{
+    @Param({ "10", "200" })
+    public int stackDepth;
+
+    @Param({ "0", "3" })
+    public int causes;
+
+    /**
+     * Max stack frames per throwable, -1 for unlimited
+     */
+    @Param({ "-1", "20" })
+    public int maxStackFrames;
+
+    private LogFmtEncoder encoder;
+
+    private ILoggingEvent event;
+
+// ----------------------------------->
+
+    @Setup
+    public void setup()
+    {
+        LoggerContext context = new LoggerContext();
+
+        LogFmtLayout layout = new LogFmtLayout();
+        layout.setContext(context);
+        if ( maxStackFrames >= 0 )
+        {
+            layout.setMaxStackFrames(maxStackFrames);
+        }
+        layout.start();
+
+        encoder = new LogFmtEncoder();
+        encoder.setContext(context);
+        encoder.setLayout(layout);
+        encoder.start();
+
+        event = BenchmarkEvents.event(context, null, BenchmarkEvents.mdc(0, BenchmarkEvents.CLEAN_VALUES), BenchmarkEvents.exception(stackDepth, causes));
+    }
+
+    @Benchmark
+    public byte[] encode()
+    {
+        return encoder.encode(event);
+    }
+}
@@ -0,0 +1,77 @@
+package com.batch.escalog.benchmarks;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import com.batch.escalog.LogFmtEncoder;
+import com.batch.escalog.LogFmtLayout;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders a single event with a LogFmtLayout (as a String) and with a LogFmtEncoder (as bytes),
+ * with default or custom fields, markers and MDC of several sizes, and values that need escaping or not
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LayoutBenchmark
+{
+    @Param({ "default", "custom" })
+    public String fields;
+
+    @Param({ "0", "4", "32" })
+    public int markerSize;
+
+    @Param({ "0", "4" })
+    public int mdcSize;
+
+    @Param({ "clean", "escaped" })
+    public String values;
+
+    private LogFmtLayout layout;
+
+    private LogFmtEncoder encoder;
+
+    private ILoggingEvent event;
+
+// ----------------------------------->
+
+    @Setup
+    public void setup()
+    {
+        LoggerContext context = new LoggerContext();
+
+        layout = new LogFmtLayout();
+        layout.setContext(context);
+        layout.setAppName("benchmark");
+        if ( "custom".equals(fields) )
+        {
+            layout.setFields("time, level, msg, custom, mdc");
+        }
+        layout.start();
+
+        encoder = new LogFmtEncoder();
+        encoder.setContext(context);
+        encoder.setLayout(layout);
+        encoder.start();
+
+        String[] values = BenchmarkEvents.values(this.values);
+        event = BenchmarkEvents.event(context, BenchmarkEvents.marker(markerSize, values), BenchmarkEvents.mdc(mdcSize, values), null);
+    }
+
+    @Benchmark
+    public String doLayout()
+    {
+        return layout.doLayout(event);
+    }
+
+    @Benchmark
+    public byte[] encode()
+    {
+        return encoder.encode(event);
+    }
+}
@@ -0,0 +1,92 @@
+package com.batch.escalog.benchmarks;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.OutputStreamAppender;
+import com.batch.escalog.LogFmt;
+import com.batch.escalog.LogFmtEncoder;
+import com.batch.escalog.LogFmtMarker;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs through the whole logback pipeline (into a stream that discards the bytes), with LogFmt.with(...) chains,
+ * level first builders and plain slf4j markers, when the level is enabled or not
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoggerBenchmark
+{
+    @Param({ "enabled", "disabled" })
+    public String level;
+
+    private Logger logger;
+
+    private LogFmt logFmt;
+
+    private LoggerContext context;
+
+// ----------------------------------->
+
+    @Setup
+    public void setup()
+    {
+        context = new LoggerContext();
+
+        LogFmtEncoder encoder = new LogFmtEncoder();
+        encoder.setContext(context);
+        encoder.start();
+
+        OutputStreamAppender<ILoggingEvent> appender = new OutputStreamAppender<>();
+        appender.setContext(context);
+        appender.setEncoder(encoder);
+        appender.setImmediateFlush(false);
+        appender.setOutputStream(new OutputStream()
+        {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        });
+        appender.start();
+
+        logger = context.getLogger("com.batch.escalog.benchmarks.Service");
+        logger.setAdditive(false);
+        logger.addAppender(appender);
+        logger.setLevel("enabled".equals(level) ? Level.INFO : Level.WARN);
+        logFmt = LogFmt.wrap(logger);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        context.stop();
+    }
+
+    @Benchmark
+    public void withChain()
+    {
+        logFmt.with("user", "john").and("count", 42).and("ratio", 0.5).and("ok", true).info("Request processed");
+    }
+
+    @Benchmark
+    public void levelFirst()
+    {
+        logFmt.atInfo().and("user", "john").and("count", 42).and("ratio", 0.5).and("ok", true).log("Request processed");
+    }
+
+    @Benchmark
+    public void marker()
+    {
+        logger.info(LogFmtMarker.with("user", "john").and("count", 42).and("ratio", 0.5).and("ok", true), "Request processed");
+    }
+}
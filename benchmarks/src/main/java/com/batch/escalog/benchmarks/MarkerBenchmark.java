@@ -0,0 +1,55 @@
+package com.batch.escalog.benchmarks;
+
+import com.batch.escalog.LogFmtMarker;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds LogFmtMarkers of several sizes, with boxed and unboxed values
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MarkerBenchmark
+{
+    private static final String[] KEYS = new String[ 32 ];
+
+    static
+    {
+        for ( int i = 0; i < KEYS.length; i++ )
+        {
+            KEYS[ i ] = "key" + i;
+        }
+    }
+
+    @Param({ "0", "1", "4", "8", "32" })
+    public int size;
+
+// ----------------------------------->
+
+    @Benchmark
+    public LogFmtMarker stringValues()
+    {
+        LogFmtMarker marker = new LogFmtMarker();
+        for ( int i = 0; i < size; i++ )
+        {
+            marker.and(KEYS[ i ], "value");
+        }
+        return marker;
+    }
+
+    @Benchmark
+    public LogFmtMarker longValues()
+    {
+        LogFmtMarker marker = new LogFmtMarker();
+        for ( int i = 0; i < size; i++ )
+        {
+            marker.and(KEYS[ i ], 1000L + i);
+        }
+        return marker;
+    }
+}
@@ -0,0 +1,154 @@
+package com.batch.escalog.benchmarks;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import com.batch.escalog.LogFmtEncoder;
+import com.batch.escalog.LogFmtLayout;
+import com.batch.escalog.LogFmtParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Parses logfmt lines with LogFmtParser, reporting the parsed bytes per second (parsedBytes) next to the passes per second.</p>
+ * <p>By default, the lines are generated with a LogFmtEncoder into a direct buffer of 64 MB.
+ * To measure a real (multi GB) file, give its path : <code>-p file=/var/log/app.log</code>. It is memory mapped by chunks of 1 GB.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParserBenchmark
+{
+    private static final int GENERATED_SIZE = 64 * 1024 * 1024;
+
+    private static final long CHUNK_SIZE = 1L << 30;
+
+    /**
+     * Path of a logfmt file to parse, empty to parse generated lines
+     */
+    @Param({ "" })
+    public String file;
+
+    @Param({ "clean", "escaped" })
+    public String values;
+
+    private ByteBuffer generated;
+
+    private final LogFmtParser parser = new LogFmtParser();
+
+    private final StringBuilder value = new StringBuilder();
+
+    /**
+     * Bytes parsed, reported as a rate
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters
+    {
+        public long parsedBytes;
+    }
+
+// ----------------------------------->
+
+    @Setup
+    public void setup()
+    {
+        if ( !file.isEmpty() )
+        {
+            return;
+        }
+
+        LoggerContext context = new LoggerContext();
+        LogFmtLayout layout = new LogFmtLayout();
+        layout.setContext(context);
+        layout.setAppName("benchmark");
+        LogFmtEncoder encoder = new LogFmtEncoder();
+        encoder.setContext(context);
+        encoder.setLayout(layout);
+        encoder.start();
+
+        String[] values = BenchmarkEvents.values(this.values);
+        ILoggingEvent event = BenchmarkEvents.event(context, BenchmarkEvents.marker(8, values), BenchmarkEvents.mdc(2, values), null);
+        byte[] line = encoder.encode(event);
+
+        generated = ByteBuffer.allocateDirect(GENERATED_SIZE);
+        while ( generated.remaining() >= line.length )
+        {
+            generated.put(line);
+        }
+        generated.flip();
+    }
+
+    /**
+     * Goes through every field and reads the messages, as a log processing tool would
+     */
+    @Benchmark
+    public long parse(Counters counters) throws IOException
+    {
+        if ( file.isEmpty() )
+        {
+            counters.parsedBytes += generated.remaining();
+            return parse(generated);
+        }
+
+        long fields = 0;
+        try ( FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ) )
+        {
+            long position = 0;
+            long size = channel.size();
+            while ( position < size )
+            {
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, size - position));
+
+                // only complete lines, the last one is parsed with the next chunk
+                int end = chunk.limit();
+                if ( position + end < size )
+                {
+                    while ( end > 0 && chunk.get(end - 1) != '\n' )
+                    {
+                        end--;
+                    }
+                    if ( end == 0 )
+                    {
+                        throw new IOException("Line longer than " + CHUNK_SIZE + " bytes at " + position);
+                    }
+                    chunk.limit(end);
+                }
+
+                fields += parse(chunk);
+                position += end;
+            }
+            counters.parsedBytes += size;
+        }
+        return fields;
+    }
+
+    private long parse(ByteBuffer buffer)
+    {
+        long fields = 0;
+        parser.reset(buffer);
+        while ( parser.nextLine() )
+        {
+            while ( parser.nextField() )
+            {
+                fields++;
+                if ( parser.keyEquals("msg") )
+                {
+                    value.setLength(0);
+                    parser.appendValue(value);
+                    fields += value.length();
+                }
+            }
+        }
+        return fields;
+    }
+}
@@ -1,7 +1,10 @@
 package com.batch.escalog;
 
 import org.slf4j.Marker;
+import org.slf4j.event.Level;
+
 import java.util.Objects;
+import java.util.function.Supplier;
 
 /**
  * @author Guillaume PERRUDIN
@@ -13,12 +16,43 @@ public class LogFmt implements org.slf4j.Logger
      */
     private org.slf4j.Logger underlying;
 
+    /**
+     * Fields added to every line, null if there's none
+     */
+    private final LogFmtBoundFields bound;
+
 // ----------------------------------->
 
     private LogFmt(org.slf4j.Logger underlying)
+    {
+        this(underlying, null);
+    }
+
+    private LogFmt(org.slf4j.Logger underlying, LogFmtBoundFields bound)
     {
         Objects.requireNonNull(underlying, "Cannot create a Logger with a null underlying Logger");
         this.underlying = underlying;
+        this.bound = bound;
+    }
+
+// ----------------------------------->
+
+    /**
+     * <p>Returns a new LogFmt, logging to the same logger, whose lines all start with the given key-value
+     * (before the ones added with {@link #with(String, Object)}), along with the ones bound to this LogFmt.
+     * This LogFmt is left unchanged, and a key already bound gets the new value.</p>
+     * <p>The value is converted with {@link Object#toString()} and escaped once, here, instead of once per line :
+     * bind the context of a request or a job, not values that change.</p>
+     *
+     * <pre>
+     * LogFmt requestLogger = logger.bind("request_id", requestId).bind("user", user);
+     * requestLogger.with("status", 200).info("Request processed");
+     * </pre>
+     */
+    public LogFmt bind(String key, Object value)
+    {
+        Objects.requireNonNull(key, "Cannot bind a null key");
+        return new LogFmt(underlying, LogFmtBoundFields.bind(bound, key, value));
     }
 
 // ----------------------------------->
@@ -29,7 +63,7 @@ public class LogFmt implements org.slf4j.Logger
      */
     public LogFmtBuilder with(Object key, Object value)
     {
-        return new LogFmtBuilder(underlying).and(key, value);
+        return new LogFmtBuilder(underlying, Level.INFO, bound).and(key, value);
     }
 
     /**
@@ -38,7 +72,113 @@ public class LogFmt implements org.slf4j.Logger
      */
     public LogFmtBuilder with(String key, Object value)
     {
-        return new LogFmtBuilder(underlying).and(key, value);
+        return new LogFmtBuilder(underlying, Level.INFO, bound).and(key, value);
+    }
+
+    /**
+     * Starts a new LogFmtBuilder and invoke LogFmtBuild{@link #with(String, long)}
+     * @see LogFmtBuilder#and(String, long)
+     */
+    public LogFmtBuilder with(String key, long value)
+    {
+        return new LogFmtBuilder(underlying, Level.INFO, bound).and(key, value);
+    }
+
+    /**
+     * Starts a new LogFmtBuilder and invoke LogFmtBuild{@link #with(String, int)}
+     * @see LogFmtBuilder#and(String, int)
+     */
+    public LogFmtBuilder with(String key, int value)
+    {
+        return new LogFmtBuilder(underlying, Level.INFO, bound).and(key, value);
+    }
+
+    /**
+     * Starts a new LogFmtBuilder and invoke LogFmtBuild{@link #with(String, double)}
+     * @see LogFmtBuilder#and(String, double)
+     */
+    public LogFmtBuilder with(String key, double value)
+    {
+        return new LogFmtBuilder(underlying, Level.INFO, bound).and(key, value);
+    }
+
+    /**
+     * Starts a new LogFmtBuilder and invoke LogFmtBuild{@link #with(String, float)}
+     * @see LogFmtBuilder#and(String, float)
+     */
+    public LogFmtBuilder with(String key, float value)
+    {
+        return new LogFmtBuilder(underlying, Level.INFO, bound).and(key, value);
+    }
+
+    /**
+     * Starts a new LogFmtBuilder and invoke LogFmtBuild{@link #with(String, boolean)}
+     * @see LogFmtBuilder#and(String, boolean)
+     */
+    public LogFmtBuilder with(String key, boolean value)
+    {
+        return new LogFmtBuilder(underlying, Level.INFO, bound).and(key, value);
+    }
+
+    /**
+     * Starts a new LogFmtBuilder and invoke LogFmtBuild{@link #with(String, char)}
+     * @see LogFmtBuilder#and(String, char)
+     */
+    public LogFmtBuilder with(String key, char value)
+    {
+        return new LogFmtBuilder(underlying, Level.INFO, bound).and(key, value);
+    }
+
+    /**
+     * Starts a new LogFmtBuilder and invoke LogFmtBuild{@link #with(String, Supplier)}
+     * @see LogFmtBuilder#and(String, Supplier)
+     */
+    public LogFmtBuilder with(String key, Supplier<?> value)
+    {
+        return new LogFmtBuilder(underlying, Level.INFO, bound).and(key, value);
+    }
+
+// ----------------------------------->
+
+    /**
+     * <p>Starts a new LogFmtBuilder that logs at trace level with {@link LogFmtBuilder#log(String)}.</p>
+     * <p>If trace is disabled, a shared no-op builder is returned, so the call does not allocate anything.</p>
+     */
+    public LogFmtBuilder atTrace()
+    {
+        return underlying.isTraceEnabled() ? new LogFmtBuilder(underlying, Level.TRACE, bound) : LogFmtBuilder.NOOP;
+    }
+
+    /**
+     * @see #atTrace()
+     */
+    public LogFmtBuilder atDebug()
+    {
+        return underlying.isDebugEnabled() ? new LogFmtBuilder(underlying, Level.DEBUG, bound) : LogFmtBuilder.NOOP;
+    }
+
+    /**
+     * @see #atTrace()
+     */
+    public LogFmtBuilder atInfo()
+    {
+        return underlying.isInfoEnabled() ? new LogFmtBuilder(underlying, Level.INFO, bound) : LogFmtBuilder.NOOP;
+    }
+
+    /**
+     * @see #atTrace()
+     */
+    public LogFmtBuilder atWarn()
+    {
+        return underlying.isWarnEnabled() ? new LogFmtBuilder(underlying, Level.WARN, bound) : LogFmtBuilder.NOOP;
+    }
+
+    /**
+     * @see #atTrace()
+     */
+    public LogFmtBuilder atError()
+    {
+        return underlying.isErrorEnabled() ? new LogFmtBuilder(underlying, Level.ERROR, bound) : LogFmtBuilder.NOOP;
     }
 
 // ----------------------------------->
@@ -51,6 +191,18 @@ public class LogFmt implements org.slf4j.Logger
         return new LogFmt(logger);
     }
 
+    /**
+     * Returns the marker to log with : the given one, along with the bound fields if there are some
+     */
+    private Marker withBound(Marker marker)
+    {
+        if ( bound == null )
+        {
+            return marker;
+        }
+        return marker != null ? new LogFmtBoundFields.WithMarker(bound, marker) : bound;
+    }
+
 // ----------------------------------->
 // org.slf4j.Logger interface methods implementation
 
@@ -69,31 +221,31 @@ public class LogFmt implements org.slf4j.Logger
     @Override
     public void trace(String s)
     {
-        underlying.trace(s);
+        underlying.trace(bound, s);
     }
 
     @Override
     public void trace(String s, Object o)
     {
-        underlying.trace(s, o);
+        underlying.trace(bound, s, o);
     }
 
     @Override
     public void trace(String s, Object o, Object o1)
     {
-        underlying.trace(s, o, o1);
+        underlying.trace(bound, s, o, o1);
     }
 
     @Override
     public void trace(String s, Object... objects)
     {
-        underlying.trace(s, objects);
+        underlying.trace(bound, s, objects);
     }
 
     @Override
     public void trace(String s, Throwable throwable)
     {
-        underlying.trace(s, throwable);
+        underlying.trace(bound, s, throwable);
     }
 
     @Override
@@ -105,31 +257,31 @@ public class LogFmt implements org.slf4j.Logger
     @Override
     public void trace(Marker marker, String s)
     {
-        underlying.trace(marker, s);
+        underlying.trace(withBound(marker), s);
     }
 
     @Override
     public void trace(Marker marker, String s, Object o)
     {
-        underlying.trace(marker, s, o);
+        underlying.trace(withBound(marker), s, o);
     }
 
     @Override
     public void trace(Marker marker, String s, Object o, Object o1)
     {
-        underlying.trace(marker, s, o, o1);
+        underlying.trace(withBound(marker), s, o, o1);
     }
 
     @Override
     public void trace(Marker marker, String s, Object... objects)
     {
-        underlying.trace(marker, s, objects);
+        underlying.trace(withBound(marker), s, objects);
     }
 
     @Override
     public void trace(Marker marker, String s, Throwable throwable)
     {
-        underlying.trace(marker, s, throwable);
+        underlying.trace(withBound(marker), s, throwable);
     }
 
     @Override
@@ -141,31 +293,31 @@ public class LogFmt implements org.slf4j.Logger
     @Override
     public void debug(String s)
     {
-        underlying.debug(s);
+        underlying.debug(bound, s);
     }
 
     @Override
     public void debug(String s, Object o)
     {
-        underlying.debug(s, o);
+        underlying.debug(bound, s, o);
     }
 
     @Override
     public void debug(String s, Object o, Object o1)
     {
-        underlying.debug(s, o, o1);
+        underlying.debug(bound, s, o, o1);
     }
 
     @Override
     public void debug(String s, Object... objects)
     {
-        underlying.debug(s, objects);
+        underlying.debug(bound, s, objects);
     }
 
     @Override
     public void debug(String s, Throwable throwable)
     {
-        underlying.debug(s, throwable);
+        underlying.debug(bound, s, throwable);
     }
 
     @Override
@@ -177,31 +329,31 @@ public class LogFmt implements org.slf4j.Logger
     @Override
     public void debug(Marker marker, String s)
     {
-        underlying.debug(marker, s);
+        underlying.debug(withBound(marker), s);
     }
 
     @Override
     public void debug(Marker marker, String s, Object o)
     {
-        underlying.debug(marker, s, o);
+        underlying.debug(withBound(marker), s, o);
     }
 
     @Override
     public void debug(Marker marker, String s, Object o, Object o1)
     {
-        underlying.debug(marker, s, o, o1);
+        underlying.debug(withBound(marker), s, o, o1);
     }
 
     @Override
     public void debug(Marker marker, String s, Object... objects)
     {
-        underlying.debug(marker, s, objects);
+        underlying.debug(withBound(marker), s, objects);
     }
 
     @Override
     public void debug(Marker marker, String s, Throwable throwable)
     {
-        underlying.debug(marker, s, throwable);
+        underlying.debug(withBound(marker), s, throwable);
     }
 
     @Override
@@ -213,31 +365,31 @@ public class LogFmt implements org.slf4j.Logger
     @Override
     public void info(String s)
     {
-        underlying.info(s);
+        underlying.info(bound, s);
     }
 
     @Override
     public void info(String s, Object o)
     {
-        underlying.info(s, o);
+        underlying.info(bound, s, o);
     }
 
     @Override
     public void info(String s, Object o, Object o1)
     {
-        underlying.info(s, o, o1);
+        underlying.info(bound, s, o, o1);
     }
 
     @Override
     public void info(String s, Object... objects)
     {
-        underlying.info(s, objects);
+        underlying.info(bound, s, objects);
     }
 
     @Override
     public void info(String s, Throwable throwable)
     {
-        underlying.info(s, throwable);
+        underlying.info(bound, s, throwable);
     }
 
     @Override
@@ -249,31 +401,31 @@ public class LogFmt implements org.slf4j.Logger
     @Override
     public void info(Marker marker, String s)
     {
-        underlying.info(marker, s);
+        underlying.info(withBound(marker), s);
     }
 
     @Override
     public void info(Marker marker, String s, Object o)
     {
-        underlying.info(marker, s, o);
+        underlying.info(withBound(marker), s, o);
     }
 
     @Override
     public void info(Marker marker, String s, Object o, Object o1)
     {
-        underlying.info(marker, s, o, o1);
+        underlying.info(withBound(marker), s, o, o1);
     }
 
     @Override
     public void info(Marker marker, String s, Object... objects)
     {
-        underlying.info(marker, s, objects);
+        underlying.info(withBound(marker), s, objects);
     }
 
     @Override
     public void info(Marker marker, String s, Throwable throwable)
     {
-        underlying.info(marker, s, throwable);
+        underlying.info(withBound(marker), s, throwable);
     }
 
     @Override
@@ -285,31 +437,31 @@ public class LogFmt implements org.slf4j.Logger
     @Override
     public void warn(String s)
     {
-        underlying.warn(s);
+        underlying.warn(bound, s);
     }
 
     @Override
     public void warn(String s, Object o)
     {
-        underlying.warn(s, o);
+        underlying.warn(bound, s, o);
     }
 
     @Override
     public void warn(String s, Object... objects)
     {
-        underlying.warn(s, objects);
+        underlying.warn(bound, s, objects);
     }
 
     @Override
     public void warn(String s, Object o, Object o1)
     {
-        underlying.warn(s, o, o1);
+        underlying.warn(bound, s, o, o1);
     }
 
     @Override
     public void warn(String s, Throwable throwable)
     {
-        underlying.warn(s, throwable);
+        underlying.warn(bound, s, throwable);
     }
 
     @Override
@@ -321,31 +473,31 @@ public class LogFmt implements org.slf4j.Logger
     @Override
     public void warn(Marker marker, String s)
     {
-        underlying.warn(marker, s);
+        underlying.warn(withBound(marker), s);
     }
 
     @Override
     public void warn(Marker marker, String s, Object o)
     {
-        underlying.warn(marker, s, o);
+        underlying.warn(withBound(marker), s, o);
     }
 
     @Override
     public void warn(Marker marker, String s, Object o, Object o1)
     {
-        underlying.warn(marker, s, o, o1);
+        underlying.warn(withBound(marker), s, o, o1);
     }
 
     @Override
     public void warn(Marker marker, String s, Object... objects)
     {
-        underlying.warn(marker, s, objects);
+        underlying.warn(withBound(marker), s, objects);
     }
 
     @Override
     public void warn(Marker marker, String s, Throwable throwable)
     {
-        underlying.warn(marker, s, throwable);
+        underlying.warn(withBound(marker), s, throwable);
     }
 
     @Override
@@ -357,31 +509,31 @@ public class LogFmt implements org.slf4j.Logger
     @Override
     public void error(String s)
     {
-        underlying.error(s);
+        underlying.error(bound, s);
     }
 
     @Override
     public void error(String s, Object o)
     {
-        underlying.error(s, o);
+        underlying.error(bound, s, o);
     }
 
     @Override
     public void error(String s, Object o, Object o1)
     {
-        underlying.error(s, o, o1);
+        underlying.error(bound, s, o, o1);
     }
 
     @Override
     public void error(String s, Object... objects)
     {
-        underlying.error(s, objects);
+        underlying.error(bound, s, objects);
     }
 
     @Override
     public void error(String s, Throwable throwable)
     {
-        underlying.error(s, throwable);
+        underlying.error(bound, s, throwable);
     }
 
     @Override
@@ -393,31 +545,31 @@ public class LogFmt implements org.slf4j.Logger
     @Override
     public void error(Marker marker, String s)
     {
-        underlying.error(marker, s);
+        underlying.error(withBound(marker), s);
     }
 
     @Override
     public void error(Marker marker, String s, Object o)
     {
-        underlying.error(marker, s, o);
+        underlying.error(withBound(marker), s, o);
     }
 
     @Override
     public void error(Marker marker, String s, Object o, Object o1)
     {
-        underlying.error(marker, s, o, o1);
+        underlying.error(withBound(marker), s, o, o1);
     }
 
     @Override
     public void error(Marker marker, String s, Object... objects)
     {
-        underlying.error(marker, s, objects);
+        underlying.error(withBound(marker), s, objects);
     }
 
     @Override
     public void error(Marker marker, String s, Throwable throwable)
     {
-        underlying.error(marker, s, throwable);
+        underlying.error(withBound(marker), s, throwable);
     }
 
 // ----------------------------------->
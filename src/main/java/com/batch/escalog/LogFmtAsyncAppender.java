@@ -0,0 +1,487 @@
+package com.batch.escalog;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Asynchronous appender built around a pre-allocated ring buffer.</p>
+ * <p>The threads that log render the logfmt line (with the {@link LogFmtLayout} of this appender) straight into a claimed slot
+ * of the ring buffer, so neither the MDC nor the caller data have to be prepared for deferred processing.
+ * A single worker thread drains the slots in batches, and hands them to the attached appenders.</p>
+ * <p>The attached appenders should use a {@link LogFmtEncoder}, that writes the pre-rendered lines as is.
+ * The events they receive are only valid during the call : they must not be queued again (ie. by an AsyncAppender).
+ * Their MDC and caller data are only reliable if the layout of this appender rendered them.</p>
+ *
+ * <pre>
+ * &lt;appender name="async" class="com.batch.escalog.LogFmtAsyncAppender"&gt;
+ *     &lt;layout class="com.batch.escalog.LogFmtLayout"/&gt;
+ *     &lt;BufferSize&gt;1024&lt;/BufferSize&gt;
+ *     &lt;WaitStrategy&gt;blocking&lt;/WaitStrategy&gt;
+ *     &lt;OverflowPolicy&gt;block&lt;/OverflowPolicy&gt;
+ *     &lt;appender-ref ref="file"/&gt;
+ * &lt;/appender&gt;
+ * </pre>
+ */
+public class LogFmtAsyncAppender extends UnsynchronizedAppenderBase<ILoggingEvent> implements AppenderAttachable<ILoggingEvent>
+{
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    private static final int DEFAULT_BATCH_SIZE = 256;
+
+    private static final int DEFAULT_MAX_FLUSH_TIME = 1000;
+
+    /**
+     * Number of busy spins before the sleeping and yielding strategies back off
+     */
+    private static final int SPIN_TRIES = 100;
+
+// ----------------------------------->
+// logback.xml parameters
+
+    /**
+     * The layout that renders the lines
+     */
+    private LogFmtLayout layout;
+
+    /**
+     * Number of slots of the ring buffer (rounded up to a power of 2)
+     */
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    /**
+     * Maximum number of slots handed to the appenders before the worker releases them to the producers
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * How the worker waits for events
+     */
+    private WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+
+    /**
+     * What the producers do when the ring buffer is full
+     */
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    /**
+     * Maximum time to wait for the worker to flush the ring buffer when stopping, in ms
+     */
+    private int maxFlushTime = DEFAULT_MAX_FLUSH_TIME;
+
+// ----------------------------------->
+
+    private final AppenderAttachableImpl<ILoggingEvent> appenders = new AppenderAttachableImpl<>();
+
+    private LogFmtRenderedEvent[] slots;
+
+    private int mask;
+
+    /**
+     * Next sequence to be claimed by a producer
+     */
+    private final AtomicLong claimed = new AtomicLong();
+
+    /**
+     * Next sequence to be read by the worker, every slot before it is free
+     */
+    private volatile long consumed;
+
+    /**
+     * Whether the worker is parked, waiting for an event (blocking strategy)
+     */
+    private volatile boolean workerParked;
+
+    private volatile boolean running;
+
+    private final LongAdder dropped = new LongAdder();
+
+    private Thread worker;
+
+// ----------------------------------->
+
+    public LogFmtLayout getLayout()
+    {
+        return layout;
+    }
+
+    public void setLayout(LogFmtLayout layout)
+    {
+        this.layout = layout;
+    }
+
+    public void setBufferSize(int bufferSize)
+    {
+        this.bufferSize = bufferSize;
+    }
+
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets how the worker waits for events : <code>blocking</code> (default, parks until an event is published),
+     * <code>sleeping</code> (spins, then sleeps 100µs), <code>yielding</code> (spins, then yields) or <code>busySpin</code>.
+     * The lower the latency, the more CPU the worker burns while idle.
+     */
+    public void setWaitStrategy(String waitStrategy)
+    {
+        WaitStrategy strategy = parse(WaitStrategy.values(), waitStrategy);
+        if ( strategy != null )
+        {
+            this.waitStrategy = strategy;
+        }
+        else
+        {
+            addWarn("Invalid wait strategy [" + waitStrategy + "], it will be ignored");
+        }
+    }
+
+    /**
+     * Sets what happens when the ring buffer is full : <code>block</code> (default, the logging thread waits for a free slot)
+     * or <code>drop</code> (the event is discarded, and counted in {@link #getDroppedCount()})
+     */
+    public void setOverflowPolicy(String overflowPolicy)
+    {
+        OverflowPolicy policy = parse(OverflowPolicy.values(), overflowPolicy);
+        if ( policy != null )
+        {
+            this.overflowPolicy = policy;
+        }
+        else
+        {
+            addWarn("Invalid overflow policy [" + overflowPolicy + "], it will be ignored");
+        }
+    }
+
+    public void setMaxFlushTime(int maxFlushTime)
+    {
+        this.maxFlushTime = maxFlushTime;
+    }
+
+    /**
+     * Returns the number of events dropped because the ring buffer was full
+     */
+    public long getDroppedCount()
+    {
+        return dropped.sum();
+    }
+
+// ----------------------------------->
+
+    @Override
+    public void start()
+    {
+        if ( isStarted() )
+        {
+            return;
+        }
+
+        if ( !appenders.iteratorForAppenders().hasNext() )
+        {
+            addError("No attached appenders found.");
+            return;
+        }
+
+        if ( bufferSize < 1 || batchSize < 1 )
+        {
+            addError("Invalid buffer size [" + bufferSize + "] or batch size [" + batchSize + "]");
+            return;
+        }
+
+        if ( layout == null )
+        {
+            layout = new LogFmtLayout();
+            layout.setContext(getContext());
+        }
+
+        if ( !layout.isStarted() )
+        {
+            layout.start();
+        }
+
+        int capacity = Integer.highestOneBit(bufferSize - 1) << 1;
+        if ( bufferSize == 1 )
+        {
+            capacity = 1;
+        }
+
+        slots = new LogFmtRenderedEvent[ capacity ];
+        for ( int i = 0; i < capacity; i++ )
+        {
+            slots[ i ] = new LogFmtRenderedEvent();
+        }
+        mask = capacity - 1;
+
+        running = true;
+        worker = new Thread(this::drain, "LogFmtAsyncAppender-Worker-" + getName());
+        worker.setDaemon(true);
+
+        super.start();
+        worker.start();
+    }
+
+    @Override
+    public void stop()
+    {
+        if ( !isStarted() )
+        {
+            return;
+        }
+
+        super.stop();
+        running = false;
+        LockSupport.unpark(worker);
+
+        try
+        {
+            worker.join(maxFlushTime);
+            if ( worker.isAlive() )
+            {
+                addWarn("Max flush time (" + maxFlushTime + " ms) exceeded. Approximately " + (claimed.get() - consumed)
+                    + " queued events were possibly discarded.");
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            addError("Failed to join worker thread. " + (claimed.get() - consumed) + " queued events may be discarded.", e);
+        }
+    }
+
+    /**
+     * Claims a slot, renders the event into it, and publishes it to the worker
+     */
+    @Override
+    protected void append(ILoggingEvent iLoggingEvent)
+    {
+        long sequence;
+        for ( int tries = 0; ; tries++ )
+        {
+            sequence = claimed.get();
+            if ( sequence - consumed >= slots.length )
+            {
+                if ( overflowPolicy == OverflowPolicy.DROP || !running )
+                {
+                    dropped.increment();
+                    return;
+                }
+
+                backOff(tries);
+                continue;
+            }
+
+            if ( claimed.compareAndSet(sequence, sequence + 1) )
+            {
+                break;
+            }
+        }
+
+        LogFmtRenderedEvent slot = slots[ (int) sequence & mask ];
+        slot.buffer.reset();
+        slot.event = iLoggingEvent;
+        try
+        {
+            // captures the thread name now, it would be the worker's one later on
+            iLoggingEvent.getThreadName();
+            layout.render(slot.buffer, iLoggingEvent);
+        }
+        catch ( RuntimeException e )
+        {
+            // the slot must be published anyway, the worker would wait for it forever
+            slot.buffer.reset();
+            addError("Failed to render event", e);
+        }
+        finally
+        {
+            slot.sequence = sequence;
+        }
+
+        if ( workerParked )
+        {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * Worker loop : hands the published slots to the appenders, by batches
+     */
+    private void drain()
+    {
+        long next = consumed;
+        int idle = 0;
+
+        while ( running || next < claimed.get() )
+        {
+            LogFmtRenderedEvent slot = slots[ (int) next & mask ];
+            if ( slot.sequence != next )
+            {
+                idle = await(slot, next, idle);
+                continue;
+            }
+            idle = 0;
+
+            int count = 0;
+            do
+            {
+                if ( slot.buffer.length() > 0 )
+                {
+                    try
+                    {
+                        appenders.appendLoopOnAppenders(slot);
+                    }
+                    catch ( RuntimeException e )
+                    {
+                        addError("Failed to append event", e);
+                    }
+                }
+                slot.event = null;
+                // do not pin the memory of a huge line (ie. a big stack trace)
+                LogFmtBufferPool.recycle(slot.buffer);
+                next++;
+                slot = slots[ (int) next & mask ];
+            }
+            while ( ++count < batchSize && slot.sequence == next );
+
+            // releases the whole batch to the producers
+            consumed = next;
+        }
+
+        appenders.detachAndStopAllAppenders();
+    }
+
+    /**
+     * Waits for the given slot to be published, according to the wait strategy
+     * @return the new number of idle loops
+     */
+    private int await(LogFmtRenderedEvent slot, long sequence, int idle)
+    {
+        switch ( waitStrategy )
+        {
+            case BUSY_SPIN:
+                break;
+
+            case YIELDING:
+                if ( idle > SPIN_TRIES )
+                {
+                    Thread.yield();
+                }
+                break;
+
+            case SLEEPING:
+                if ( idle > SPIN_TRIES )
+                {
+                    LockSupport.parkNanos(100_000L);
+                }
+                break;
+
+            case BLOCKING:
+                workerParked = true;
+                if ( running && slot.sequence != sequence )
+                {
+                    // timed, as a producer still rendering a claimed slot does not unpark the worker
+                    LockSupport.parkNanos(this, 1_000_000L);
+                }
+                workerParked = false;
+                break;
+        }
+        return idle + 1;
+    }
+
+    /**
+     * Makes a producer wait for a free slot
+     */
+    private static void backOff(int tries)
+    {
+        if ( tries < SPIN_TRIES )
+        {
+            Thread.yield();
+        }
+        else
+        {
+            LockSupport.parkNanos(10_000L);
+        }
+    }
+
+    private static <T extends Enum<T>> T parse(T[] values, String text)
+    {
+        String name = text.trim().replaceAll("([a-z])([A-Z])", "$1_$2");
+        for ( T value : values )
+        {
+            if ( value.name().equalsIgnoreCase(name) )
+            {
+                return value;
+            }
+        }
+        return null;
+    }
+
+// ----------------------------------->
+// AppenderAttachable interface methods
+
+    @Override
+    public void addAppender(Appender<ILoggingEvent> newAppender)
+    {
+        appenders.addAppender(newAppender);
+    }
+
+    @Override
+    public Iterator<Appender<ILoggingEvent>> iteratorForAppenders()
+    {
+        return appenders.iteratorForAppenders();
+    }
+
+    @Override
+    public Appender<ILoggingEvent> getAppender(String name)
+    {
+        return appenders.getAppender(name);
+    }
+
+    @Override
+    public boolean isAttached(Appender<ILoggingEvent> appender)
+    {
+        return appenders.isAttached(appender);
+    }
+
+    @Override
+    public void detachAndStopAllAppenders()
+    {
+        appenders.detachAndStopAllAppenders();
+    }
+
+    @Override
+    public boolean detachAppender(Appender<ILoggingEvent> appender)
+    {
+        return appenders.detachAppender(appender);
+    }
+
+    @Override
+    public boolean detachAppender(String name)
+    {
+        return appenders.detachAppender(name);
+    }
+
+// ----------------------------------->
+
+    enum WaitStrategy
+    {
+        BLOCKING,
+        SLEEPING,
+        YIELDING,
+        BUSY_SPIN
+    }
+
+    enum OverflowPolicy
+    {
+        BLOCK,
+        DROP
+    }
+}
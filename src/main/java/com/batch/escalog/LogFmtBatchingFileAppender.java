@@ -0,0 +1,448 @@
+package com.batch.escalog;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.util.Duration;
+import ch.qos.logback.core.util.FileSize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>File appender that batches the logfmt lines (UTF-8) and writes them with gathering writes.</p>
+ * <p>Lines are rendered by the logging threads into their own buffer, then copied under a lock into a set of direct buffers
+ * (BufferSize bytes in total, 256 KB by default). The buffers are written to the file in a single
+ * {@link FileChannel#write(ByteBuffer[], int, int)} call when they are full, or when the oldest buffered line is older than
+ * MaxLatency (100 ms by default).</p>
+ * <p>Durability depends on the level of the events :</p>
+ * <ul>
+ *     <li>events at or above FlushLevel (ERROR by default) are written to the file immediately, along with the buffered ones</li>
+ *     <li>events at or above SyncLevel (OFF by default) are also forced to the disk</li>
+ * </ul>
+ * <p>Events already rendered by a {@link LogFmtAsyncAppender} are written as is.</p>
+ *
+ * <pre>
+ * &lt;appender name="file" class="com.batch.escalog.LogFmtBatchingFileAppender"&gt;
+ *     &lt;File&gt;logs/app.log&lt;/File&gt;
+ *     &lt;layout class="com.batch.escalog.LogFmtLayout"/&gt;
+ *     &lt;BufferSize&gt;256KB&lt;/BufferSize&gt;
+ *     &lt;MaxLatency&gt;100 milliseconds&lt;/MaxLatency&gt;
+ *     &lt;FlushLevel&gt;WARN&lt;/FlushLevel&gt;
+ *     &lt;SyncLevel&gt;ERROR&lt;/SyncLevel&gt;
+ * &lt;/appender&gt;
+ * </pre>
+ */
+public class LogFmtBatchingFileAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
+{
+    private static final long DEFAULT_BUFFER_SIZE = 256 * FileSize.KB_COEFFICIENT;
+
+    /**
+     * Maximum size of each direct buffer
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+// ----------------------------------->
+// logback.xml parameters
+
+    private String file;
+
+    /**
+     * The layout that renders the lines
+     */
+    private LogFmtLayout layout;
+
+    /**
+     * Number of bytes buffered before they are written
+     */
+    private FileSize bufferSize = new FileSize(DEFAULT_BUFFER_SIZE);
+
+    /**
+     * Maximum time a line stays in the buffers, null or 0 to only write full buffers
+     */
+    private Duration maxLatency = Duration.buildByMilliseconds(100);
+
+    /**
+     * Events at or above this level are written immediately
+     */
+    private Level flushLevel = Level.ERROR;
+
+    /**
+     * Events at or above this level are forced to the disk
+     */
+    private Level syncLevel = Level.OFF;
+
+// ----------------------------------->
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private LogFmtBufferPool buffers;
+
+    private FileChannel channel;
+
+    private ByteBuffer[] chunks;
+
+    /**
+     * Index of the chunk being filled
+     */
+    private int current;
+
+    /**
+     * Time (System.nanoTime) at which the oldest buffered line was buffered, only valid when there are buffered lines
+     */
+    private long oldestNanos;
+
+    private ScheduledFuture<?> flushTask;
+
+// ----------------------------------->
+
+    public String getFile()
+    {
+        return file;
+    }
+
+    public void setFile(String file)
+    {
+        this.file = file;
+    }
+
+    public LogFmtLayout getLayout()
+    {
+        return layout;
+    }
+
+    public void setLayout(LogFmtLayout layout)
+    {
+        this.layout = layout;
+    }
+
+    public void setBufferSize(FileSize bufferSize)
+    {
+        this.bufferSize = bufferSize;
+    }
+
+    public void setMaxLatency(Duration maxLatency)
+    {
+        this.maxLatency = maxLatency;
+    }
+
+    public void setFlushLevel(String flushLevel)
+    {
+        this.flushLevel = Level.toLevel(flushLevel, this.flushLevel);
+    }
+
+    public void setSyncLevel(String syncLevel)
+    {
+        this.syncLevel = Level.toLevel(syncLevel, this.syncLevel);
+    }
+
+// ----------------------------------->
+
+    @Override
+    public void start()
+    {
+        if ( isStarted() )
+        {
+            return;
+        }
+
+        if ( file == null )
+        {
+            addError("No File set for the appender named [" + name + "].");
+            return;
+        }
+
+        if ( bufferSize.getSize() < 1 || bufferSize.getSize() > Integer.MAX_VALUE )
+        {
+            addError("Invalid buffer size [" + bufferSize + "], it must be between 1 byte and 2 GB");
+            return;
+        }
+
+        if ( layout == null )
+        {
+            layout = new LogFmtLayout();
+            layout.setContext(getContext());
+        }
+
+        if ( !layout.isStarted() )
+        {
+            layout.start();
+        }
+
+        buffers = new LogFmtBufferPool(false);
+
+        int size = (int) bufferSize.getSize();
+        chunks = new ByteBuffer[ (size + CHUNK_SIZE - 1) / CHUNK_SIZE ];
+        for ( int i = 0; i < chunks.length; i++ )
+        {
+            chunks[ i ] = ByteBuffer.allocateDirect(Math.min(CHUNK_SIZE, size - i * CHUNK_SIZE));
+        }
+        current = 0;
+
+        try
+        {
+            Path path = Paths.get(file);
+            if ( path.getParent() != null )
+            {
+                Files.createDirectories(path.getParent());
+            }
+            channel = openChannel();
+        }
+        catch ( IOException e )
+        {
+            addError("Failed to open " + file, e);
+            return;
+        }
+
+        if ( maxLatency != null && maxLatency.getMilliseconds() > 0 && getContext() != null )
+        {
+            // checks twice per MaxLatency, so that no line waits much longer than it
+            long period = Math.max(maxLatency.getMilliseconds() / 2, 1);
+            flushTask = getContext().getScheduledExecutorService().scheduleAtFixedRate(this::flushExpired, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        super.start();
+    }
+
+    @Override
+    public void stop()
+    {
+        if ( !isStarted() )
+        {
+            return;
+        }
+
+        super.stop();
+        if ( flushTask != null )
+        {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+
+        lock.lock();
+        try
+        {
+            writeChunks(true);
+            channel.close();
+        }
+        catch ( IOException e )
+        {
+            addError("Failed to close " + file, e);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected void append(ILoggingEvent iLoggingEvent)
+    {
+        // already rendered by a LogFmtAsyncAppender
+        if ( iLoggingEvent instanceof LogFmtRenderedEvent )
+        {
+            write(((LogFmtRenderedEvent) iLoggingEvent).buffer, iLoggingEvent.getLevel());
+            return;
+        }
+
+        LogFmtBuffer buffer = buffers.acquire();
+        try
+        {
+            layout.render(buffer, iLoggingEvent);
+            write(buffer, iLoggingEvent.getLevel());
+        }
+        finally
+        {
+            buffers.release(buffer);
+        }
+    }
+
+    /**
+     * Writes the buffered lines to the file
+     * @param sync whether to force them to the disk too
+     */
+    public void flush(boolean sync)
+    {
+        lock.lock();
+        try
+        {
+            writeChunks(sync);
+        }
+        catch ( IOException e )
+        {
+            addError("Failed to write to " + file, e);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+// ----------------------------------->
+
+    private void write(LogFmtBuffer buffer, Level level)
+    {
+        lock.lock();
+        try
+        {
+            if ( !channel.isOpen() )
+            {
+                return;
+            }
+
+            if ( isEmpty() )
+            {
+                oldestNanos = System.nanoTime();
+            }
+
+            byte[] bytes = buffer.array();
+            int offset = 0;
+            int length = buffer.length();
+            while ( offset < length )
+            {
+                ByteBuffer chunk = chunks[ current ];
+                if ( !chunk.hasRemaining() )
+                {
+                    if ( current + 1 < chunks.length )
+                    {
+                        current++;
+                    }
+                    else
+                    {
+                        // all the chunks are full
+                        writeChunks(false);
+                        oldestNanos = System.nanoTime();
+                    }
+                    continue;
+                }
+
+                int count = Math.min(chunk.remaining(), length - offset);
+                chunk.put(bytes, offset, count);
+                offset += count;
+            }
+
+            if ( level.isGreaterOrEqual(flushLevel) )
+            {
+                writeChunks(level.isGreaterOrEqual(syncLevel));
+            }
+        }
+        catch ( IOException e )
+        {
+            addError("Failed to write to " + file, e);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the buffered lines if the oldest one is older than MaxLatency
+     */
+    private void flushExpired()
+    {
+        if ( !lock.tryLock() )
+        {
+            // a logging thread is busy with the buffers, it will check again later
+            return;
+        }
+
+        try
+        {
+            if ( !isEmpty() && System.nanoTime() - oldestNanos >= TimeUnit.MILLISECONDS.toNanos(maxLatency.getMilliseconds()) )
+            {
+                writeChunks(false);
+            }
+        }
+        catch ( IOException e )
+        {
+            addError("Failed to write to " + file, e);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the chunks with a gathering write and clears them. Must be called under the lock
+     */
+    private void writeChunks(boolean sync) throws IOException
+    {
+        if ( !channel.isOpen() )
+        {
+            return;
+        }
+
+        int count = current + 1;
+        for ( int i = 0; i < count; i++ )
+        {
+            chunks[ i ].flip();
+        }
+
+        // an interrupted thread would close the channel for good : its interrupt status is restored after the write
+        boolean interrupted = Thread.interrupted();
+        try
+        {
+            // a gathering write may be partial
+            int first = 0;
+            while ( first < count )
+            {
+                try
+                {
+                    channel.write(chunks, first, count - first);
+                }
+                catch ( ClosedByInterruptException e )
+                {
+                    // interrupted while writing
+                    interrupted |= Thread.interrupted();
+                    channel = openChannel();
+                    continue;
+                }
+
+                while ( first < count && !chunks[ first ].hasRemaining() )
+                {
+                    first++;
+                }
+            }
+
+            if ( sync )
+            {
+                channel.force(false);
+            }
+        }
+        finally
+        {
+            // on failure, the lines are lost rather than written again with the next ones
+            for ( int i = 0; i < count; i++ )
+            {
+                chunks[ i ].clear();
+            }
+            current = 0;
+
+            if ( interrupted )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private FileChannel openChannel() throws IOException
+    {
+        return FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private boolean isEmpty()
+    {
+        return current == 0 && chunks[ 0 ].position() == 0;
+    }
+}
@@ -0,0 +1,135 @@
+package com.batch.escalog;
+
+import org.slf4j.Marker;
+
+import java.util.Arrays;
+
+/**
+ * <p>Key-values bound to a logger with {@link LogFmt#bind(String, Object)}, immutable.</p>
+ * <p>Values are converted with toString() and escaped once, when they are bound, and the whole "key=value ..." fragment
+ * is encoded once too : {@link LogFmtLayout} writes it as a single copy before the other custom fields.
+ * It falls back to the rendered values one by one when a key is a native key or when the layout has size limits.</p>
+ * <p>The bound fields are the marker of the events logged without marker (ie. <code>bound.info("msg")</code>), and are carried
+ * by the {@link LogFmtMarker} of the builders. A marker given by the caller is wrapped along with them, without being copied.</p>
+ */
+final class LogFmtBoundFields extends LogFmtForwardingMarker
+{
+    final String[] keys;
+
+    /**
+     * Values, converted to String
+     */
+    final String[] values;
+
+    /**
+     * Values quoted and escaped if needed, followed by a space
+     */
+    final String[] renderedValues;
+
+    /**
+     * All the fields ("key=value "), UTF-8 encoded. Null if a key is a native key, as it depends on the reserved key policy of the layout
+     */
+    final byte[] fragment;
+
+    /**
+     * Number of quoted values
+     */
+    final int quotedValues;
+
+// ----------------------------------->
+
+    private LogFmtBoundFields(String[] keys, String[] values)
+    {
+        this.keys = keys;
+        this.values = values;
+        this.renderedValues = new String[ values.length ];
+
+        LogFmtBuffer fragment = new LogFmtBuffer();
+        boolean nativeKeys = false;
+        int quotedValues = 0;
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            renderedValues[ i ] = new LogFmtBuffer().appendValue(values[ i ]).append((byte) ' ').toString();
+            fragment.append(keys[ i ]).append((byte) '=').append(renderedValues[ i ]);
+            nativeKeys |= LogFmtLayout.NativeKey.isNativeKey(keys[ i ]);
+            quotedValues += isQuoted(i) ? 1 : 0;
+        }
+        this.fragment = nativeKeys ? null : fragment.toByteArray();
+        this.quotedValues = quotedValues;
+    }
+
+// ----------------------------------->
+
+    /**
+     * Returns the given bound fields (null if there's none) with the given key-value added, or replaced if the key is already bound
+     */
+    static LogFmtBoundFields bind(LogFmtBoundFields bound, String key, Object value)
+    {
+        String[] keys = bound != null ? bound.keys : new String[ 0 ];
+        String[] values = bound != null ? bound.values : new String[ 0 ];
+
+        int index = Arrays.asList(keys).indexOf(key);
+        if ( index < 0 )
+        {
+            index = keys.length;
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            keys[ index ] = key;
+        }
+        values = Arrays.copyOf(values, keys.length);
+        values[ index ] = String.valueOf(value);
+
+        return new LogFmtBoundFields(keys, values);
+    }
+
+    int size()
+    {
+        return keys.length;
+    }
+
+    /**
+     * Returns whether the i-th rendered value is quoted (a value starting with a quote always is, as quotes need quoting)
+     */
+    boolean isQuoted(int i)
+    {
+        return renderedValues[ i ].charAt(0) == '"';
+    }
+
+// ----------------------------------->
+
+    /**
+     * A marker given by the caller of a bound logger, along with the bound fields of the logger.
+     * Its name and references are the ones of the given marker
+     */
+    static final class WithMarker extends LogFmtForwardingMarker
+    {
+        final LogFmtBoundFields bound;
+
+        final Marker marker;
+
+        WithMarker(LogFmtBoundFields bound, Marker marker)
+        {
+            this.bound = bound;
+            this.marker = marker;
+        }
+
+        @Override
+        Marker delegate()
+        {
+            return marker;
+        }
+
+        @Override
+        public String toString()
+        {
+            return marker.toString();
+        }
+    }
+
+    /**
+     * Returns the marker given by the caller, if the given one carries bound fields
+     */
+    static Marker unwrap(Marker marker)
+    {
+        return marker instanceof WithMarker ? ((WithMarker) marker).marker : marker;
+    }
+}
@@ -0,0 +1,581 @@
+package com.batch.escalog;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>Growable byte buffer a logfmt line is rendered into.</p>
+ * <p>Chars are encoded on the fly (UTF-8, or ISO-8859-1 if requested), with a fast path for ASCII,
+ * so a line never goes through an intermediate String before reaching the output.</p>
+ * <p><b>This buffer is not thread safe</b>, see {@link LogFmtBufferPool} to get one per thread.</p>
+ */
+final class LogFmtBuffer
+{
+    static final int DEFAULT_CAPACITY = 512;
+
+    /**
+     * Longs below this value can be converted to a double without loss
+     */
+    private static final long MAX_EXACT_LONG = 1L << 53;
+
+    /**
+     * ASCII chars that can be written as is in an unquoted value
+     */
+    private static final byte SAFE = 0;
+
+    /**
+     * ASCII chars that can be written as is, but only in a quoted value
+     */
+    private static final byte QUOTE = 1;
+
+    /**
+     * Escaping of each ASCII char : SAFE, QUOTE, or the char to write after a backslash
+     */
+    private static final byte[] ESCAPES = new byte[ 128 ];
+
+    static
+    {
+        Arrays.fill(ESCAPES, QUOTE);
+        for ( char c = 'a'; c <= 'z'; c++ ) ESCAPES[ c ] = SAFE;
+        for ( char c = 'A'; c <= 'Z'; c++ ) ESCAPES[ c ] = SAFE;
+        for ( char c = '0'; c <= '9'; c++ ) ESCAPES[ c ] = SAFE;
+        for ( char c : "-._/@^+".toCharArray() ) ESCAPES[ c ] = SAFE;
+
+        ESCAPES[ '\t' ] = 't';
+        ESCAPES[ '\b' ] = 'b';
+        ESCAPES[ '\n' ] = 'n';
+        ESCAPES[ '\r' ] = 'r';
+        ESCAPES[ '\f' ] = 'f';
+        ESCAPES[ '"' ] = '"';
+        ESCAPES[ '\\' ] = '\\';
+    }
+
+    /**
+     * Whether chars are encoded as ISO-8859-1 (chars that cannot be encoded are replaced by '?') instead of UTF-8
+     */
+    private final boolean latin1;
+
+    private byte[] bytes;
+
+    private int length;
+
+    /**
+     * Number of values that were quoted, since the buffer was created
+     */
+    private int quotedValues;
+
+    /**
+     * Set by the pool while the buffer is lent to a renderer
+     */
+    boolean inUse;
+
+    /**
+     * Moving average of the lengths of the lines rendered into this buffer, maintained by {@link LogFmtBufferPool}
+     */
+    int averageLength;
+
+    /**
+     * Size limits of the line being rendered, maintained by {@link LogFmtLayout} : length beyond which no field is added,
+     * number of MDC and marker fields added, and whether fields were dropped
+     */
+    int lineLimit = Integer.MAX_VALUE;
+
+    int customFields;
+
+    boolean truncated;
+
+// ----------------------------------->
+
+    LogFmtBuffer()
+    {
+        this(DEFAULT_CAPACITY, false);
+    }
+
+    LogFmtBuffer(int capacity, boolean latin1)
+    {
+        this.bytes = new byte[ capacity ];
+        this.latin1 = latin1;
+        this.averageLength = capacity / 2;
+    }
+
+// ----------------------------------->
+
+    int length()
+    {
+        return length;
+    }
+
+    int capacity()
+    {
+        return bytes.length;
+    }
+
+    /**
+     * Returns the backing array, only the first {@link #length()} bytes are meaningful
+     */
+    byte[] array()
+    {
+        return bytes;
+    }
+
+    boolean isLatin1()
+    {
+        return latin1;
+    }
+
+    int quotedValues()
+    {
+        return quotedValues;
+    }
+
+    /**
+     * Counts values quoted without {@link #appendValue(CharSequence)}, ie. pre-rendered or rendered by hand
+     */
+    void countQuotedValues(int count)
+    {
+        quotedValues += count;
+    }
+
+    void reset()
+    {
+        length = 0;
+    }
+
+    /**
+     * Empties the buffer and replaces its backing array by a smaller one, if it is larger than the given capacity
+     */
+    void trim(int capacity)
+    {
+        length = 0;
+        if ( bytes.length > capacity )
+        {
+            bytes = new byte[ capacity ];
+        }
+    }
+
+    void setLastByte(byte b)
+    {
+        bytes[ length - 1 ] = b;
+    }
+
+// ----------------------------------->
+
+    LogFmtBuffer append(byte b)
+    {
+        ensureCapacity(1);
+        bytes[ length++ ] = b;
+        return this;
+    }
+
+    LogFmtBuffer append(byte[] src)
+    {
+        return append(src, 0, src.length);
+    }
+
+    LogFmtBuffer append(byte[] src, int offset, int len)
+    {
+        ensureCapacity(len);
+        System.arraycopy(src, offset, bytes, length, len);
+        length += len;
+        return this;
+    }
+
+    LogFmtBuffer append(char c)
+    {
+        if ( c < 0x80 )
+        {
+            return append((byte) c);
+        }
+
+        ensureCapacity(3);
+        encodeNonAscii(c);
+        return this;
+    }
+
+    LogFmtBuffer append(CharSequence s)
+    {
+        return append(s, 0, s.length());
+    }
+
+    /**
+     * Appends the chars of s between start (inclusive) and end (exclusive)
+     */
+    LogFmtBuffer append(CharSequence s, int start, int end)
+    {
+        ensureCapacity(end - start);
+
+        int i = start;
+
+        // ASCII fast path: one byte per char, capacity already ensured
+        for ( ; i < end; i++ )
+        {
+            char c = s.charAt(i);
+            if ( c >= 0x80 )
+            {
+                break;
+            }
+            bytes[ length++ ] = (byte) c;
+        }
+
+        // slow path, some chars need more than one byte
+        for ( ; i < end; i++ )
+        {
+            char c = s.charAt(i);
+            if ( c < 0x80 )
+            {
+                ensureCapacity(1);
+                bytes[ length++ ] = (byte) c;
+            }
+            else if ( Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1)) )
+            {
+                ensureCapacity(4);
+                char low = s.charAt(++i);
+                if ( latin1 )
+                {
+                    bytes[ length++ ] = (byte) '?';
+                    continue;
+                }
+                int codePoint = Character.toCodePoint(c, low);
+                bytes[ length++ ] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[ length++ ] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[ length++ ] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[ length++ ] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+            else
+            {
+                ensureCapacity(3);
+                encodeNonAscii(c);
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * <p>Appends the given value, quoted and escaped if needed.</p>
+     * <p>This is done in a single pass : the value is written unquoted until a char that needs quoting is found,
+     * then only what was already written is shifted to insert the opening quote.</p>
+     */
+    LogFmtBuffer appendValue(CharSequence value)
+    {
+        int valueStart = length;
+        if ( escape(value, 0, value.length(), valueStart, false) )
+        {
+            append((byte) '"');
+            quotedValues++;
+        }
+        return this;
+    }
+
+    /**
+     * Appends the given value like {@link #appendValue(CharSequence)}, cut to its first maxChars chars if it is longer.
+     * Only the kept chars are escaped, and they are followed by "…[+N]" (N being the number of chars cut) inside the quotes.
+     */
+    LogFmtBuffer appendValue(CharSequence value, int maxChars)
+    {
+        int end = value.length();
+        if ( end <= maxChars )
+        {
+            return appendValue(value);
+        }
+
+        // does not split a surrogate pair
+        int kept = Math.max(maxChars, 0);
+        if ( kept > 0 && Character.isHighSurrogate(value.charAt(kept - 1)) )
+        {
+            kept--;
+        }
+
+        int valueStart = length;
+        if ( !escape(value, 0, kept, valueStart, false) )
+        {
+            insertQuote(valueStart);
+        }
+        quotedValues++;
+
+        if ( latin1 )
+        {
+            append("...");
+        }
+        else
+        {
+            append('\u2026');
+        }
+        return append("[+").appendLong(end - kept).append((byte) ']').append((byte) '"');
+    }
+
+    /**
+     * Appends the given char as a value, quoted and escaped if needed
+     */
+    LogFmtBuffer appendValue(char c)
+    {
+        if ( c < 0x80 && ESCAPES[ c ] == SAFE )
+        {
+            return append((byte) c);
+        }
+
+        quotedValues++;
+        append((byte) '"');
+        char escape = escapeOf(c);
+        if ( escape != 0 )
+        {
+            append((byte) '\\').append((byte) escape);
+        }
+        else
+        {
+            append(c);
+        }
+        return append((byte) '"');
+    }
+
+    /**
+     * Appends the chars of s between start (inclusive) and end (exclusive) escaped, meant to be inside a quoted value
+     */
+    LogFmtBuffer appendEscaped(CharSequence s, int start, int end)
+    {
+        escape(s, start, end, length, true);
+        return this;
+    }
+
+    /**
+     * Writes the chars of s escaped, and inserts an opening quote at valueStart when the first char that needs quoting is met.
+     * @return whether the value is quoted
+     */
+    private boolean escape(CharSequence s, int start, int end, int valueStart, boolean quoted)
+    {
+        // room for the value, its opening quote and its closing quote if there's nothing to escape
+        ensureCapacity(end - start + 2);
+
+        int i = start;
+        while ( i < end )
+        {
+            // copies the run of safe chars
+            char c;
+            while ( (c = s.charAt(i)) < 0x80 && ESCAPES[ c ] == SAFE )
+            {
+                bytes[ length++ ] = (byte) c;
+                if ( ++i == end )
+                {
+                    return quoted;
+                }
+            }
+
+            if ( !quoted )
+            {
+                insertQuote(valueStart);
+                quoted = true;
+            }
+
+            if ( c < 0x80 )
+            {
+                byte escape = ESCAPES[ c ];
+                if ( escape == QUOTE )
+                {
+                    bytes[ length++ ] = (byte) c;
+                }
+                else
+                {
+                    ensureCapacity(end - i + 2);
+                    bytes[ length++ ] = '\\';
+                    bytes[ length++ ] = escape;
+                }
+                i++;
+            }
+            else
+            {
+                // non ASCII, which is never escaped
+                int next = i + 1;
+                if ( Character.isHighSurrogate(c) && next < end && Character.isLowSurrogate(s.charAt(next)) )
+                {
+                    next++;
+                }
+                append(s, i, next);
+                ensureCapacity(end - next + 1);
+                i = next;
+            }
+        }
+
+        return quoted;
+    }
+
+    /**
+     * Shifts what was written since valueStart to insert an opening quote
+     */
+    private void insertQuote(int valueStart)
+    {
+        ensureCapacity(1);
+        System.arraycopy(bytes, valueStart, bytes, valueStart + 1, length - valueStart);
+        bytes[ valueStart ] = '"';
+        length++;
+    }
+
+    /**
+     * Returns the char to write after a backslash to escape c, or 0 if c is written as is
+     */
+    static char escapeOf(char c)
+    {
+        byte escape = c < 0x80 ? ESCAPES[ c ] : SAFE;
+        return escape > QUOTE ? (char) escape : 0;
+    }
+
+    /**
+     * Returns whether the given value must be quoted, ie. if it contains any char that is not SAFE
+     */
+    static boolean needsQuoting(CharSequence value)
+    {
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            char c = value.charAt(i);
+            if ( c >= 0x80 || ESCAPES[ c ] != SAFE )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Appends the decimal representation of the given long, digit by digit
+     */
+    LogFmtBuffer appendLong(long value)
+    {
+        if ( value == Long.MIN_VALUE )
+        {
+            return append("-9223372036854775808");
+        }
+
+        if ( value < 0 )
+        {
+            append((byte) '-');
+            value = -value;
+        }
+
+        return appendDigits(value, digitCount(value));
+    }
+
+    /**
+     * <p>Appends the decimal representation of the given double, as {@link Double#toString(double)} does.</p>
+     * <p>Values in [10^-3, 10^7[ (where Double.toString does not use the computerized scientific notation)
+     * are rendered digit by digit, with the shortest number of fraction digits that gives back the same double.
+     * Other values fall back to Double.toString.</p>
+     */
+    LogFmtBuffer appendDouble(double value)
+    {
+        double abs = Math.abs(value);
+        if ( abs >= 1e-3 && abs < 1e7 )
+        {
+            long scale = 1;
+            for ( int digits = 1; digits <= 9; digits++ )
+            {
+                scale *= 10;
+                long units = Math.round(abs * scale);
+                if ( units < MAX_EXACT_LONG && (double) units / scale == abs )
+                {
+                    if ( value < 0 )
+                    {
+                        append((byte) '-');
+                    }
+                    appendDigits(units / scale, digitCount(units / scale));
+                    append((byte) '.');
+                    return appendDigits(units % scale, digits);
+                }
+            }
+        }
+
+        return append(Double.toString(value));
+    }
+
+    /**
+     * Appends the given value as 16 lower case hexadecimal digits
+     */
+    LogFmtBuffer appendHex(long value)
+    {
+        ensureCapacity(16);
+        for ( int i = length + 15; i >= length; i-- )
+        {
+            int digit = (int) (value & 0xF);
+            bytes[ i ] = (byte) (digit < 10 ? '0' + digit : 'a' + digit - 10);
+            value >>>= 4;
+        }
+        length += 16;
+        return this;
+    }
+
+    /**
+     * Appends the given positive value on exactly width digits (left padded with zeros, or truncated to the lowest digits)
+     */
+    LogFmtBuffer appendDigits(long value, int width)
+    {
+        ensureCapacity(width);
+        for ( int i = length + width - 1; i >= length; i-- )
+        {
+            bytes[ i ] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        length += width;
+        return this;
+    }
+
+    private static int digitCount(long value)
+    {
+        int count = 1;
+        while ( value >= 10 )
+        {
+            value /= 10;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Encodes a single non ASCII char (capacity must have been ensured)
+     */
+    private void encodeNonAscii(char c)
+    {
+        if ( latin1 )
+        {
+            bytes[ length++ ] = c <= 0xFF ? (byte) c : (byte) '?';
+        }
+        else if ( c < 0x800 )
+        {
+            bytes[ length++ ] = (byte) (0xC0 | (c >> 6));
+            bytes[ length++ ] = (byte) (0x80 | (c & 0x3F));
+        }
+        else if ( Character.isSurrogate(c) )
+        {
+            // lone surrogate, cannot be encoded
+            bytes[ length++ ] = (byte) '?';
+        }
+        else
+        {
+            bytes[ length++ ] = (byte) (0xE0 | (c >> 12));
+            bytes[ length++ ] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            bytes[ length++ ] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    /**
+     * Makes sure that extra bytes can be appended without growing the array
+     */
+    void ensureCapacity(int extra)
+    {
+        int required = length + extra;
+        if ( required > bytes.length )
+        {
+            bytes = Arrays.copyOf(bytes, Math.max(required, bytes.length << 1));
+        }
+    }
+
+// ----------------------------------->
+
+    byte[] toByteArray()
+    {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    @Override
+    public String toString()
+    {
+        return new String(bytes, 0, length, latin1 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,97 @@
+package com.batch.escalog;
+
+/**
+ * <p>Per-thread pool of {@link LogFmtBuffer}, so that rendering a line does not allocate a new buffer for each event.</p>
+ * <p>A buffer still in use (ie. a value whose toString() logs something itself) is never lent twice,
+ * a fresh one is allocated instead.</p>
+ * <p>Buffers are sized from the lines recently rendered into them : each buffer keeps a moving average of its line lengths,
+ * and is trimmed back to twice that average when it is much larger (ie. after a big stack trace). New buffers start
+ * at the size the other threads settled on, so they do not have to grow again.</p>
+ */
+final class LogFmtBufferPool
+{
+    /**
+     * Buffers that grew beyond this capacity (big stack traces) are not kept
+     */
+    static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    static final int MIN_CAPACITY = 128;
+
+    /**
+     * Buffers are trimmed when they are this many times larger than the capacity their recent lines need
+     */
+    private static final int TRIM_FACTOR = 4;
+
+    private final boolean latin1;
+
+    private final ThreadLocal<LogFmtBuffer> buffers;
+
+    /**
+     * Capacity of the new buffers, from the last buffer released
+     */
+    private volatile int sizeHint = LogFmtBuffer.DEFAULT_CAPACITY;
+
+// ----------------------------------->
+
+    LogFmtBufferPool(boolean latin1)
+    {
+        this.latin1 = latin1;
+        this.buffers = ThreadLocal.withInitial(this::newBuffer);
+    }
+
+// ----------------------------------->
+
+    /**
+     * Returns an empty buffer, that must be given back with {@link #release(LogFmtBuffer)}
+     */
+    LogFmtBuffer acquire()
+    {
+        LogFmtBuffer buffer = buffers.get();
+        if ( buffer.inUse )
+        {
+            return newBuffer();
+        }
+
+        buffer.inUse = true;
+        buffer.reset();
+        return buffer;
+    }
+
+    void release(LogFmtBuffer buffer)
+    {
+        buffer.inUse = false;
+        int capacity = recycle(buffer);
+        if ( sizeHint != capacity )
+        {
+            sizeHint = capacity;
+        }
+    }
+
+    /**
+     * Adds the line held by the buffer to its average line length, then empties the buffer,
+     * and trims it if it is much larger than its recent lines
+     * @return the capacity needed by the recent lines of the buffer
+     */
+    static int recycle(LogFmtBuffer buffer)
+    {
+        // exponential moving average, over about 8 lines
+        buffer.averageLength += (buffer.length() - buffer.averageLength) >> 3;
+
+        int wanted = Math.max(buffer.averageLength * 2, MIN_CAPACITY);
+        int capacity = Math.min(Integer.highestOneBit(wanted - 1) << 1, MAX_RETAINED_CAPACITY);
+        if ( buffer.capacity() > capacity * TRIM_FACTOR || buffer.capacity() > MAX_RETAINED_CAPACITY )
+        {
+            buffer.trim(capacity);
+        }
+        else
+        {
+            buffer.reset();
+        }
+        return capacity;
+    }
+
+    private LogFmtBuffer newBuffer()
+    {
+        return new LogFmtBuffer(sizeHint, latin1);
+    }
+}
@@ -1,38 +1,82 @@
 package com.batch.escalog;
 
 import org.slf4j.Marker;
+import org.slf4j.event.Level;
+import org.slf4j.helpers.NOPLogger;
 
 import java.util.Objects;
+import java.util.function.Supplier;
 
 /**
  * <p>A log fmt builder, that will helps to build a log entry, with markers attached.</p>
  * <p><b>This builder is absolutely not thread safe</b>, and should not be shared.</p>
+ * <p>Builders started with a level (see {@link LogFmt#atDebug()}) log with {@link #log(String)} at that level.
+ * When the level is disabled, the shared {@link #NOOP} builder is returned instead : it ignores everything, without allocating.</p>
  *
  * @author Nicolas DOUILLET
  * @author Guillaume PERRUDIN
  */
 public class LogFmtBuilder implements org.slf4j.Logger
 {
+    /**
+     * Stateless builder returned for disabled levels, that does not log anything
+     */
+    static final LogFmtBuilder NOOP = new LogFmtBuilder();
+
     /**
      * The underlying logger instance
      */
     private org.slf4j.Logger underlying;
 
     /**
-     * The logFmtMarker (that contains key-values)
+     * The logFmtMarker (that contains key-values), null for the NOOP builder
      */
     private final LogFmtMarker logFmtMarker;
 
+    /**
+     * The level used by the log methods
+     */
+    private final Level level;
+
 // ----------------------------------->
 
     /**
      * Create a new log fmt builder
      */
     LogFmtBuilder(org.slf4j.Logger underlying)
+    {
+        this(underlying, Level.INFO);
+    }
+
+    /**
+     * Create a new log fmt builder, that logs at the given level with the log methods
+     */
+    LogFmtBuilder(org.slf4j.Logger underlying, Level level)
     {
         Objects.requireNonNull(underlying, "Can't create a new log fmt builder with no logger");
+        Objects.requireNonNull(level, "Can't create a new log fmt builder with no level");
         this.underlying = underlying;
         this.logFmtMarker = new LogFmtMarker();
+        this.level = level;
+    }
+
+    /**
+     * Create a new log fmt builder, whose lines start with the given bound fields (if not null)
+     */
+    LogFmtBuilder(org.slf4j.Logger underlying, Level level, LogFmtBoundFields bound)
+    {
+        this(underlying, level);
+        this.logFmtMarker.bound = bound;
+    }
+
+    /**
+     * Create the NOOP builder
+     */
+    private LogFmtBuilder()
+    {
+        this.underlying = NOPLogger.NOP_LOGGER;
+        this.logFmtMarker = null;
+        this.level = null;
     }
 
 // ----------------------------------->
@@ -48,7 +92,10 @@ public class LogFmtBuilder implements org.slf4j.Logger
      */
     public LogFmtBuilder and(Object key, Object value)
     {
-        logFmtMarker.and(key, value);
+        if ( logFmtMarker != null )
+        {
+            logFmtMarker.and(key, value);
+        }
         return this;
     }
 
@@ -63,10 +110,242 @@ public class LogFmtBuilder implements org.slf4j.Logger
      */
     public LogFmtBuilder and(String key, Object value)
     {
-        logFmtMarker.and(key, value);
+        if ( logFmtMarker != null )
+        {
+            logFmtMarker.and(key, value);
+        }
+        return this;
+    }
+
+    /**
+     * <p>Adds a new key/value marker to the current log fmt builder, without boxing the value</p>
+     *
+     * @param key   the string key
+     * @param value the value
+     *
+     * @return this instance
+     * @see LogFmtMarker#and(String, long)
+     */
+    public LogFmtBuilder and(String key, long value)
+    {
+        if ( logFmtMarker != null )
+        {
+            logFmtMarker.and(key, value);
+        }
+        return this;
+    }
+
+    /**
+     * <p>Adds a new key/value marker to the current log fmt builder, without boxing the value</p>
+     *
+     * @param key   the string key
+     * @param value the value
+     *
+     * @return this instance
+     * @see LogFmtMarker#and(String, int)
+     */
+    public LogFmtBuilder and(String key, int value)
+    {
+        if ( logFmtMarker != null )
+        {
+            logFmtMarker.and(key, value);
+        }
+        return this;
+    }
+
+    /**
+     * <p>Adds a new key/value marker to the current log fmt builder, without boxing the value</p>
+     *
+     * @param key   the string key
+     * @param value the value
+     *
+     * @return this instance
+     * @see LogFmtMarker#and(String, double)
+     */
+    public LogFmtBuilder and(String key, double value)
+    {
+        if ( logFmtMarker != null )
+        {
+            logFmtMarker.and(key, value);
+        }
+        return this;
+    }
+
+    /**
+     * <p>Adds a new key/value marker to the current log fmt builder. The value is boxed, to be rendered with {@link Float#toString(float)}</p>
+     *
+     * @param key   the string key
+     * @param value the value
+     *
+     * @return this instance
+     * @see LogFmtMarker#and(String, float)
+     */
+    public LogFmtBuilder and(String key, float value)
+    {
+        if ( logFmtMarker != null )
+        {
+            logFmtMarker.and(key, value);
+        }
         return this;
     }
 
+    /**
+     * <p>Adds a new key/value marker to the current log fmt builder. The value is boxed to one of the cached Boolean instances</p>
+     *
+     * @param key   the string key
+     * @param value the value
+     *
+     * @return this instance
+     * @see LogFmtMarker#and(String, boolean)
+     */
+    public LogFmtBuilder and(String key, boolean value)
+    {
+        if ( logFmtMarker != null )
+        {
+            logFmtMarker.and(key, value);
+        }
+        return this;
+    }
+
+    /**
+     * <p>Adds a new key/value marker to the current log fmt builder, without boxing the value</p>
+     *
+     * @param key   the string key
+     * @param value the value
+     *
+     * @return this instance
+     * @see LogFmtMarker#and(String, char)
+     */
+    public LogFmtBuilder and(String key, char value)
+    {
+        if ( logFmtMarker != null )
+        {
+            logFmtMarker.and(key, value);
+        }
+        return this;
+    }
+
+    /**
+     * <p>Adds a new key and lazily evaluated value to the current log fmt builder.</p>
+     *
+     * @param key   the string key
+     * @param value the supplier of the value, only invoked if the event is rendered
+     *
+     * @return this instance
+     * @see LogFmtMarker#and(String, Supplier)
+     */
+    public LogFmtBuilder and(String key, Supplier<?> value)
+    {
+        if ( logFmtMarker != null )
+        {
+            logFmtMarker.and(key, value);
+        }
+        return this;
+    }
+
+// ----------------------------------->
+// level-first logging methods
+
+    /**
+     * Logs the message at the level of this builder (info if it has been started with {@link LogFmt#with(String, Object)})
+     */
+    public void log(String s)
+    {
+        if ( logFmtMarker == null )
+        {
+            return;
+        }
+
+        switch ( level )
+        {
+            case TRACE: underlying.trace(logFmtMarker, s); break;
+            case DEBUG: underlying.debug(logFmtMarker, s); break;
+            case INFO:  underlying.info(logFmtMarker, s);  break;
+            case WARN:  underlying.warn(logFmtMarker, s);  break;
+            case ERROR: underlying.error(logFmtMarker, s); break;
+        }
+    }
+
+    /**
+     * @see #log(String)
+     */
+    public void log(String s, Object o)
+    {
+        if ( logFmtMarker == null )
+        {
+            return;
+        }
+
+        switch ( level )
+        {
+            case TRACE: underlying.trace(logFmtMarker, s, o); break;
+            case DEBUG: underlying.debug(logFmtMarker, s, o); break;
+            case INFO:  underlying.info(logFmtMarker, s, o);  break;
+            case WARN:  underlying.warn(logFmtMarker, s, o);  break;
+            case ERROR: underlying.error(logFmtMarker, s, o); break;
+        }
+    }
+
+    /**
+     * @see #log(String)
+     */
+    public void log(String s, Object o, Object o1)
+    {
+        if ( logFmtMarker == null )
+        {
+            return;
+        }
+
+        switch ( level )
+        {
+            case TRACE: underlying.trace(logFmtMarker, s, o, o1); break;
+            case DEBUG: underlying.debug(logFmtMarker, s, o, o1); break;
+            case INFO:  underlying.info(logFmtMarker, s, o, o1);  break;
+            case WARN:  underlying.warn(logFmtMarker, s, o, o1);  break;
+            case ERROR: underlying.error(logFmtMarker, s, o, o1); break;
+        }
+    }
+
+    /**
+     * @see #log(String)
+     */
+    public void log(String s, Object... objects)
+    {
+        if ( logFmtMarker == null )
+        {
+            return;
+        }
+
+        switch ( level )
+        {
+            case TRACE: underlying.trace(logFmtMarker, s, objects); break;
+            case DEBUG: underlying.debug(logFmtMarker, s, objects); break;
+            case INFO:  underlying.info(logFmtMarker, s, objects);  break;
+            case WARN:  underlying.warn(logFmtMarker, s, objects);  break;
+            case ERROR: underlying.error(logFmtMarker, s, objects); break;
+        }
+    }
+
+    /**
+     * @see #log(String)
+     */
+    public void log(String s, Throwable throwable)
+    {
+        if ( logFmtMarker == null )
+        {
+            return;
+        }
+
+        switch ( level )
+        {
+            case TRACE: underlying.trace(logFmtMarker, s, throwable); break;
+            case DEBUG: underlying.debug(logFmtMarker, s, throwable); break;
+            case INFO:  underlying.info(logFmtMarker, s, throwable);  break;
+            case WARN:  underlying.warn(logFmtMarker, s, throwable);  break;
+            case ERROR: underlying.error(logFmtMarker, s, throwable); break;
+        }
+    }
+
 // ----------------------------------->
 // org.slf4j.Logger interface methods implementation
 
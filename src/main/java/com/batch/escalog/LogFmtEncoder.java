@@ -0,0 +1,142 @@
+package com.batch.escalog;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.encoder.EncoderBase;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>Logback Encoder that renders events with a {@link LogFmtLayout} straight into bytes.</p>
+ * <p>Unlike a LayoutWrappingEncoder, the line never goes through a String:
+ * it is encoded while being rendered into a reusable per-thread buffer.
+ * UTF-8 (default) and ISO-8859-1 are encoded natively, other charsets fall back to the layout output.</p>
+ * <p>Lines already rendered by a {@link LogFmtAsyncAppender} are written as is (if the charset is UTF-8).</p>
+ *
+ * <pre>
+ * &lt;encoder class="com.batch.escalog.LogFmtEncoder"&gt;
+ *     &lt;layout class="com.batch.escalog.LogFmtLayout"&gt;
+ *         &lt;AppName&gt;My Application Name&lt;/AppName&gt;
+ *     &lt;/layout&gt;
+ * &lt;/encoder&gt;
+ * </pre>
+ */
+public class LogFmtEncoder extends EncoderBase<ILoggingEvent>
+{
+    /**
+     * The layout that renders the events
+     */
+    private LogFmtLayout layout;
+
+    /**
+     * The charset of the output
+     */
+    private Charset charset = StandardCharsets.UTF_8;
+
+    /**
+     * Buffers the lines are rendered into, null if the charset is not natively supported
+     */
+    private LogFmtBufferPool buffers;
+
+// ----------------------------------->
+
+    public LogFmtLayout getLayout()
+    {
+        return layout;
+    }
+
+    public void setLayout(LogFmtLayout layout)
+    {
+        this.layout = layout;
+    }
+
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    public void setCharset(Charset charset)
+    {
+        this.charset = charset;
+    }
+
+// ----------------------------------->
+
+    @Override
+    public void start()
+    {
+        if ( layout == null )
+        {
+            layout = new LogFmtLayout();
+            layout.setContext(getContext());
+        }
+
+        if ( !layout.isStarted() )
+        {
+            layout.start();
+        }
+
+        if ( StandardCharsets.UTF_8.equals(charset) )
+        {
+            buffers = new LogFmtBufferPool(false);
+        }
+        else if ( StandardCharsets.ISO_8859_1.equals(charset) )
+        {
+            buffers = new LogFmtBufferPool(true);
+        }
+        else
+        {
+            buffers = null;
+        }
+
+        super.start();
+    }
+
+    @Override
+    public void stop()
+    {
+        super.stop();
+        if ( layout != null )
+        {
+            layout.stop();
+        }
+    }
+
+    @Override
+    public byte[] headerBytes()
+    {
+        return null;
+    }
+
+    @Override
+    public byte[] encode(ILoggingEvent iLoggingEvent)
+    {
+        // already rendered (UTF-8) by a LogFmtAsyncAppender
+        if ( iLoggingEvent instanceof LogFmtRenderedEvent && StandardCharsets.UTF_8.equals(charset) )
+        {
+            return ((LogFmtRenderedEvent) iLoggingEvent).buffer.toByteArray();
+        }
+
+        if ( buffers == null )
+        {
+            return layout.doLayout(iLoggingEvent).getBytes(charset);
+        }
+
+        LogFmtBuffer buffer = buffers.acquire();
+        try
+        {
+            layout.render(buffer, iLoggingEvent);
+            return buffer.toByteArray();
+        }
+        finally
+        {
+            buffers.release(buffer);
+        }
+    }
+
+    @Override
+    public byte[] footerBytes()
+    {
+        return null;
+    }
+}
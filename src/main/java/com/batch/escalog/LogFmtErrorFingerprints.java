@@ -0,0 +1,98 @@
+package com.batch.escalog;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>Fingerprints the logged throwables, and remembers when the stack trace of each fingerprint was last logged.</p>
+ * <p>A fingerprint is a hash of the class names and stack frames of a throwable and its causes (not of the messages),
+ * so the same failure logged repeatedly always gets the same one.
+ * Fingerprints are kept in a bounded direct mapped cache : a fingerprint evicted by another one is treated as new.</p>
+ * <p>This class is thread safe, and lock free.</p>
+ */
+final class LogFmtErrorFingerprints
+{
+    /**
+     * Number of fingerprints remembered, a power of 2
+     */
+    static final int CAPACITY = 1024;
+
+    /**
+     * Min time (ms) between two stack traces logged for the same fingerprint
+     */
+    private final long repeatInterval;
+
+    private final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<>(CAPACITY);
+
+// ----------------------------------->
+
+    LogFmtErrorFingerprints(long repeatInterval)
+    {
+        this.repeatInterval = repeatInterval;
+    }
+
+// ----------------------------------->
+
+    /**
+     * Returns the fingerprint of the given throwable
+     */
+    static long fingerprint(IThrowableProxy throwableProxy)
+    {
+        long hash = 1125899906842597L;
+        for ( IThrowableProxy current = throwableProxy; current != null; current = current.getCause() )
+        {
+            hash = 31 * hash + current.getClassName().hashCode();
+            for ( StackTraceElementProxy step : current.getStackTraceElementProxyArray() )
+            {
+                hash = 31 * hash + step.getStackTraceElement().hashCode();
+            }
+        }
+
+        // spreads the bits (murmur3 finalizer), the low ones are used to find the cache slot
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Returns whether the stack trace of the given fingerprint must be logged at the given time (ms),
+     * ie. if it was not logged during the last repeat interval. If so, it is recorded as logged.
+     */
+    boolean shouldPrint(long fingerprint, long timestamp)
+    {
+        int slot = (int) fingerprint & (CAPACITY - 1);
+        while ( true )
+        {
+            Entry entry = entries.get(slot);
+            if ( entry != null && entry.fingerprint == fingerprint && timestamp - entry.printedAt < repeatInterval )
+            {
+                return false;
+            }
+
+            // only the thread that records the print actually prints
+            if ( entries.compareAndSet(slot, entry, new Entry(fingerprint, timestamp)) )
+            {
+                return true;
+            }
+        }
+    }
+
+// ----------------------------------->
+
+    private static final class Entry
+    {
+        final long fingerprint;
+        final long printedAt;
+
+        Entry(long fingerprint, long printedAt)
+        {
+            this.fingerprint = fingerprint;
+            this.printedAt = printedAt;
+        }
+    }
+}
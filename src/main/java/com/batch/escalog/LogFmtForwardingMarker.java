@@ -0,0 +1,78 @@
+package com.batch.escalog;
+
+import org.slf4j.Marker;
+import org.slf4j.MarkerFactory;
+
+import java.util.Iterator;
+
+/**
+ * Marker whose name and references are the ones of another marker, the common "LOGFMT" marker by default
+ */
+abstract class LogFmtForwardingMarker implements Marker
+{
+    /**
+     * Common marker of the LogFmt markers
+     */
+    static final Marker LOGFMT = MarkerFactory.getMarker("LOGFMT");
+
+// ----------------------------------->
+
+    /**
+     * Returns the marker the Marker methods are forwarded to
+     */
+    Marker delegate()
+    {
+        return LOGFMT;
+    }
+
+// ----------------------------------->
+// Marker interface methods
+
+    @Override
+    public String getName()
+    {
+        return delegate().getName();
+    }
+
+    @Override
+    public void add(Marker reference)
+    {
+        delegate().add(reference);
+    }
+
+    @Override
+    public boolean remove(Marker reference)
+    {
+        return delegate().remove(reference);
+    }
+
+    @Override
+    public boolean hasChildren()
+    {
+        return delegate().hasChildren();
+    }
+
+    @Override
+    public boolean hasReferences()
+    {
+        return delegate().hasReferences();
+    }
+
+    @Override
+    public Iterator iterator()
+    {
+        return delegate().iterator();
+    }
+
+    @Override
+    public boolean contains(Marker other)
+    {
+        return delegate().contains(other);
+    }
+
+    @Override
+    public boolean contains(String name)
+    {
+        return delegate().contains(name);
+    }
+}
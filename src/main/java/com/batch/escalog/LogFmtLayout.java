@@ -2,12 +2,17 @@ package com.batch.escalog;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
-import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+import ch.qos.logback.classic.spi.IThrowableProxy;
 import ch.qos.logback.core.LayoutBase;
 import org.slf4j.Marker;
 
-import java.text.SimpleDateFormat;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.batch.escalog.LogFmtLayout.NativeKey.*;
 
@@ -22,6 +27,27 @@ public class LogFmtLayout extends LayoutBase<ILoggingEvent>
 
     private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
 
+    private static final int MAX_CACHED_LOGGER_NAMES = 10_000;
+
+    static final int UNLIMITED = Integer.MAX_VALUE;
+
+    /**
+     * Field added to the lines some fields were dropped from, followed by the line feed
+     */
+    private static final byte[] TRUNCATED_FIELD = (TRUNCATED.text + "=true\n").getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Max number of bytes added to the kept chars of a cut value : quotes, "…[+N]" and the trailing space
+     */
+    private static final int CUT_VALUE_OVERHEAD = 19;
+
+    /**
+     * Level fields of the levels error, warn, info, debug, trace, all and off, pre-rendered
+     */
+    private static final byte[][] LEVEL_FIELDS = Arrays.stream(new Level[] { Level.ERROR, Level.WARN, Level.INFO, Level.DEBUG, Level.TRACE, Level.ALL, Level.OFF })
+        .map(level -> appendField(new LogFmtBuffer(), NativeKey.LEVEL, formatLogLevel(level)).toByteArray())
+        .toArray(byte[][]::new);
+
 
 // ----------------------------------->
 // logback.xml parameters
@@ -37,9 +63,99 @@ public class LogFmtLayout extends LayoutBase<ILoggingEvent>
     private String appName = null;
 
     /**
-     * The time format
+     * Renders the time field, with the time format
+     */
+    private LogFmtTimeRenderer timeRenderer = LogFmtTimeRenderer.forFormat(DATE_FORMAT);
+
+    /**
+     * Where the package and module fields come from
+     */
+    private PackageSource packageSource = PackageSource.CALLER_DATA;
+
+    /**
+     * What to do with MDC and marker keys that collide with a native key
+     */
+    private ReservedKeyPolicy reservedKeyPolicy = ReservedKeyPolicy.DROP;
+
+    /**
+     * Prefix of the colliding keys, with the rename policy
+     */
+    private String reservedKeyPrefix = "_";
+
+    /**
+     * Max number of stack frames rendered per throwable in the error field
+     */
+    private int maxStackFrames = LogFmtThrowableRenderer.UNLIMITED;
+
+    /**
+     * Max depth of the causes (and suppressed throwables) rendered in the error field
+     */
+    private int maxCauseDepth = LogFmtThrowableRenderer.UNLIMITED;
+
+    /**
+     * Packages whose stack frames are not rendered in the error field
+     */
+    private String[] excludedPackages = new String[ 0 ];
+
+    /**
+     * MDC keys rendered, null to render all of them
+     */
+    private String[] mdcInclude;
+
+    /**
+     * MDC keys never rendered
+     */
+    private String[] mdcExclude = new String[ 0 ];
+
+    /**
+     * MDC keys rendered first, in this order
+     */
+    private String[] mdcOrder = new String[ 0 ];
+
+    /**
+     * Max number of chars of the msg, MDC and marker values
+     */
+    private int maxValueLength = UNLIMITED;
+
+    /**
+     * Max number of chars of the values of some keys, overriding maxValueLength
+     */
+    private Map<String, Integer> maxValueLengths = new HashMap<>();
+
+    /**
+     * Max number of MDC and marker fields per line
+     */
+    private int maxCustomFields = UNLIMITED;
+
+    /**
+     * Max number of bytes per line (error field excepted)
+     */
+    private int maxLineLength = UNLIMITED;
+
+    /**
+     * Min time (ms) between two stack traces logged for the same error fingerprint, 0 to log them all without error_id
+     */
+    private long errorRepeatInterval = 0;
+
+    /**
+     * Whether metrics are collected and exposed as a JMX MBean
+     */
+    private boolean metricsEnabled = false;
+
+    /**
+     * Name of the MBean, the name of the logger context by default
+     */
+    private String metricsName;
+
+    /**
+     * The metrics, null if they are not collected
+     */
+    private volatile LogFmtLayoutMetrics metrics;
+
+    /**
+     * Name the metrics MBean was registered with, null if it is not registered
      */
-    private String timeFormat;
+    private ObjectName metricsObjectName;
 
 // ----------------------------------->
 
@@ -59,9 +175,24 @@ public class LogFmtLayout extends LayoutBase<ILoggingEvent>
     private List<KeyValueAppender> customAppenders;
 
     /**
-     * Formats the time field
+     * The render plan compiled from the configuration, null if it has to be compiled again
+     */
+    private volatile RenderPlan plan;
+
+    /**
+     * Buffers lines are rendered into by {@link #doLayout(ILoggingEvent)}
+     */
+    private final LogFmtBufferPool buffers = new LogFmtBufferPool(false);
+
+    /**
+     * Rendered package and module fields by logger name, when they come from the logger name
+     */
+    private final Map<String, RenderedField[]> loggerNameFields = new ConcurrentHashMap<>();
+
+    /**
+     * Last thread field rendered by each thread
      */
-    private ThreadLocal<SimpleDateFormat> simpleDateFormat = ThreadLocal.withInitial(() -> new SimpleDateFormat(timeFormat != null ? timeFormat : DATE_FORMAT));
+    private final ThreadLocal<ThreadField> threadFields = ThreadLocal.withInitial(ThreadField::new);
 
 
 
@@ -86,21 +217,37 @@ public class LogFmtLayout extends LayoutBase<ILoggingEvent>
     public void setPrefix(String prefix)
     {
         this.prefix = prefix;
+        this.plan = null;
     }
 
     public void setAppName(String appName)
     {
         this.appName = appName;
+        this.plan = null;
     }
 
+    /**
+     * Sets the format of the time field : a java.time pattern, or one of the presets
+     * RFC3339, RFC3339_MILLIS, RFC3339_MICROS, EPOCH_MILLIS and EPOCH_NANOS.
+     * An invalid format is ignored, and a warning is logged for the letters that SimpleDateFormat renders differently.
+     */
     public void setTimeFormat(String timeFormat)
     {
         try
         {
-            new SimpleDateFormat(timeFormat);
-            this.timeFormat = timeFormat;
+            this.timeRenderer = LogFmtTimeRenderer.forFormat(timeFormat);
+        }
+        catch ( Exception e )
+        {
+            addWarn("Invalid time format [" + timeFormat + "], it will be ignored", e);
+            return;
+        }
+
+        String differences = LogFmtTimeRenderer.simpleDateFormatDifferences(timeFormat);
+        if ( differences != null )
+        {
+            addWarn("Time format [" + timeFormat + "] is a java.time pattern, not a SimpleDateFormat one : " + differences);
         }
-        catch ( Exception e ) {}
     }
 
 
@@ -115,261 +262,1246 @@ public class LogFmtLayout extends LayoutBase<ILoggingEvent>
                 customAppenders.add(appender);
             }
         }
+        this.plan = null;
     }
 
-// ----------------------------------->
+    /**
+     * <p>Sets where the package and module fields come from :</p>
+     * <ul>
+     *     <li><code>callerData</code> (default) : the class that logged, which makes logback walk the stack for each event</li>
+     *     <li><code>loggerName</code> : the name of the logger, split on its last dot. Almost free, as it is cached per logger</li>
+     *     <li><code>none</code> : the fields are not logged</li>
+     * </ul>
+     * An invalid source is ignored.
+     */
+    public void setPackageSource(String packageSource)
+    {
+        for ( PackageSource source : PackageSource.values() )
+        {
+            if ( source.text.equalsIgnoreCase(packageSource.trim()) )
+            {
+                this.packageSource = source;
+                return;
+            }
+        }
 
+        addWarn("Invalid package source [" + packageSource + "], it will be ignored");
+    }
 
-    public String doLayout(ILoggingEvent iLoggingEvent)
+    /**
+     * <p>Sets what happens to MDC and marker keys that collide with a native key (time, level, msg...) :</p>
+     * <ul>
+     *     <li><code>drop</code> (default) : the field is not logged</li>
+     *     <li><code>rename</code> : the key is prefixed with the reserved key prefix (<code>_</code> by default), ie. <code>_level=...</code></li>
+     *     <li><code>keep</code> : the field is logged as is, next to the native one (the line has the key twice)</li>
+     * </ul>
+     * An invalid policy is ignored.
+     */
+    public void setReservedKeyPolicy(String reservedKeyPolicy)
     {
-        StringBuilder sb = new StringBuilder();
-
-        // prefix
-        if ( prefix != null )
+        for ( ReservedKeyPolicy policy : ReservedKeyPolicy.values() )
         {
-            sb.append(prefix).append(' ');
+            if ( policy.text.equalsIgnoreCase(reservedKeyPolicy.trim()) )
+            {
+                this.reservedKeyPolicy = policy;
+                this.plan = null;
+                return;
+            }
         }
 
-        // app_name
-        if ( appName != null )
+        addWarn("Invalid reserved key policy [" + reservedKeyPolicy + "], it will be ignored");
+    }
+
+    public void setReservedKeyPrefix(String reservedKeyPrefix)
+    {
+        this.reservedKeyPrefix = reservedKeyPrefix;
+        this.plan = null;
+    }
+
+    /**
+     * Sets the max number of stack frames rendered per throwable in the error field, the others are replaced by a
+     * "... N frames truncated" line. A negative number is ignored.
+     */
+    public void setMaxStackFrames(int maxStackFrames)
+    {
+        if ( maxStackFrames < 0 )
         {
-            appendKeyValueAndEscape(sb, APP.toString(), appName);
+            addWarn("Invalid max stack frames [" + maxStackFrames + "], it will be ignored");
+            return;
         }
 
-        for ( KeyValueAppender keyValueAppender : customAppenders != null ? customAppenders : defaultAppenders )
+        this.maxStackFrames = maxStackFrames;
+        this.plan = null;
+    }
+
+    /**
+     * Sets the max depth of the causes (and suppressed throwables) rendered in the error field. A negative depth is ignored.
+     */
+    public void setMaxCauseDepth(int maxCauseDepth)
+    {
+        if ( maxCauseDepth < 0 )
         {
-            keyValueAppender.append(sb, iLoggingEvent);
+            addWarn("Invalid max cause depth [" + maxCauseDepth + "], it will be ignored");
+            return;
         }
 
-        // removes the last space char and adds a carriage return
-        sb.setCharAt(sb.length() - 1, '\n');
-
-        return sb.toString();
+        this.maxCauseDepth = maxCauseDepth;
+        this.plan = null;
     }
 
-
-    private void levelAppender(StringBuilder sb, ILoggingEvent iLoggingEvent)
+    /**
+     * Sets the packages (comma separated) whose stack frames are not rendered in the error field,
+     * each run of excluded frames is replaced by a "... N frames excluded" line
+     */
+    public void setExcludedPackages(String excludedPackages)
     {
-        appendKeyValueAndEscape(sb, LEVEL.toString(), formatLogLevel(iLoggingEvent.getLevel()));
+        this.excludedPackages = splitList(excludedPackages);
+        this.plan = null;
     }
 
-    private void timeAppender(StringBuilder sb, ILoggingEvent iLoggingEvent)
+    /**
+     * Sets the only MDC keys (comma separated) that are rendered, in this order unless MdcOrder is set.
+     * The other keys of the MDC are never read.
+     */
+    public void setMdcInclude(String mdcInclude)
     {
-        appendKeyValueAndEscape(sb, TIME.toString(), simpleDateFormat.get().format(new Date(iLoggingEvent.getTimeStamp())));
+        this.mdcInclude = splitList(mdcInclude);
+        this.plan = null;
     }
 
-    private void threadAppender(StringBuilder sb, ILoggingEvent iLoggingEvent)
+    /**
+     * Sets the MDC keys (comma separated) that are never rendered
+     */
+    public void setMdcExclude(String mdcExclude)
     {
-        appendKeyValueAndEscape(sb, THREAD.toString(), iLoggingEvent.getThreadName());
+        this.mdcExclude = splitList(mdcExclude);
+        this.plan = null;
     }
 
-    private void msgAppender(StringBuilder sb, ILoggingEvent iLoggingEvent)
+    /**
+     * Sets the MDC keys (comma separated) that are rendered first, in this order. The other keys follow in the order of the MDC map.
+     */
+    public void setMdcOrder(String mdcOrder)
     {
-        appendKeyValueAndEscape(sb, MESSAGE.toString(), iLoggingEvent.getFormattedMessage());
+        this.mdcOrder = splitList(mdcOrder);
+        this.plan = null;
     }
 
-    private void mdcAppender(StringBuilder sb, ILoggingEvent iLoggingEvent)
+    /**
+     * Sets the max number of chars of the msg, MDC and marker values. Longer values are cut, and end with "…[+N]",
+     * N being the number of chars cut. A negative length is ignored.
+     */
+    public void setMaxValueLength(int maxValueLength)
     {
-        Map<String, String> mdc = iLoggingEvent.getMDCPropertyMap();
-        if ( mdc != null )
+        if ( maxValueLength < 0 )
         {
-            mdc.forEach((k, v) ->
-            {
-                if ( !isNativeKey(k) )
-                {
-                    appendKeyValueAndEscape(sb, k, v);
-                }
-            });
+            addWarn("Invalid max value length [" + maxValueLength + "], it will be ignored");
+            return;
         }
+
+        this.maxValueLength = maxValueLength;
+        this.plan = null;
     }
 
-    private void customFieldsAppender(StringBuilder sb, ILoggingEvent iLoggingEvent)
+    /**
+     * Sets the max number of chars of the values of some keys, overriding MaxValueLength (comma separated,
+     * ie. <code>msg=4096, request_body=256</code>). Invalid items are ignored.
+     */
+    public void setMaxValueLengths(String maxValueLengths)
     {
-        Marker marker = iLoggingEvent.getMarker();
-        if ( marker != null && marker instanceof LogFmtMarker )
+        Map<String, Integer> lengths = new HashMap<>();
+        for ( String item : splitList(maxValueLengths) )
         {
-            LogFmtMarker keyValueMarker = (LogFmtMarker) marker;
-            keyValueMarker.forEach((k, v) ->
+            int separator = item.lastIndexOf('=');
+            try
             {
-                if ( !isNativeKey(k) )
+                int length = Integer.parseInt(item.substring(separator + 1).trim());
+                if ( separator <= 0 || length < 0 )
                 {
-                    appendKeyValueAndEscape(sb, k, v);
+                    throw new NumberFormatException();
                 }
-            });
+                lengths.put(item.substring(0, separator).trim(), length);
+            }
+            catch ( NumberFormatException e )
+            {
+                addWarn("Invalid max value length [" + item + "], it will be ignored");
+            }
         }
+
+        this.maxValueLengths = lengths;
+        this.plan = null;
     }
 
-    private void errorAppender(StringBuilder sb, ILoggingEvent iLoggingEvent)
+    /**
+     * Sets the max number of MDC and marker fields per line, the next ones are dropped and the line gets a
+     * <code>truncated=true</code> field. A negative number is ignored.
+     */
+    public void setMaxCustomFields(int maxCustomFields)
     {
-        if ( iLoggingEvent.getThrowableProxy() != null )
+        if ( maxCustomFields < 0 )
         {
-            appendKeyValueAndEscape(sb, ERROR.toString(), ThrowableProxyUtil.asString(iLoggingEvent.getThrowableProxy()));
+            addWarn("Invalid max custom fields [" + maxCustomFields + "], it will be ignored");
+            return;
         }
+
+        this.maxCustomFields = maxCustomFields;
+        this.plan = null;
     }
 
-    private void packageAppender(StringBuilder sb, ILoggingEvent iLoggingEvent)
+    /**
+     * <p>Sets the max number of bytes per line. The msg, MDC or marker value that reaches it is cut, the next ones are dropped
+     * and the line gets a <code>truncated=true</code> field.</p>
+     * <p>The limit is counted in chars while a value is escaped, so escaped and multi-byte chars (and long keys) can exceed it slightly.
+     * The error field is not limited, see MaxStackFrames and MaxCauseDepth. A negative length is ignored.</p>
+     */
+    public void setMaxLineLength(int maxLineLength)
     {
-        String className = getLastClassName(iLoggingEvent.getCallerData());
-        if ( className != null )
+        if ( maxLineLength < 0 )
         {
-            int lastPointPosition = className.lastIndexOf('.');
-            String pkg = lastPointPosition >= 0 ? className.substring(0, lastPointPosition) : "";
-            appendKeyValueAndEscape(sb, PACKAGE.toString(), pkg);
+            addWarn("Invalid max line length [" + maxLineLength + "], it will be ignored");
+            return;
         }
 
+        this.maxLineLength = maxLineLength;
+        this.plan = null;
     }
 
-    private void moduleAppender(StringBuilder sb, ILoggingEvent iLoggingEvent)
+    /**
+     * <p>Enables the fingerprinting of errors, if the interval (ms) is positive.</p>
+     * <p>Lines with an error then get an error_id field, a hash of the exception classes and stack frames.
+     * The full stack trace of an error_id is only logged once per interval, the other lines only log the first line of the exception.</p>
+     * A negative interval is ignored.
+     */
+    public void setErrorRepeatInterval(long errorRepeatInterval)
     {
-        String className = getLastClassName(iLoggingEvent.getCallerData());
-        if ( className != null )
+        if ( errorRepeatInterval < 0 )
         {
-            int lastPointPosition = className.lastIndexOf('.');
-            String module = lastPointPosition >= 0 ? className.substring(lastPointPosition + 1, className.length()) : className;
-            appendKeyValueAndEscape(sb, MODULE.toString(), module);
+            addWarn("Invalid error repeat interval [" + errorRepeatInterval + "], it will be ignored");
+            return;
         }
 
+        this.errorRepeatInterval = errorRepeatInterval;
+        this.plan = null;
     }
 
-    private String getLastClassName(StackTraceElement[] callerData)
+    /**
+     * Enables the metrics (events and bytes rendered, render time...), exposed as the JMX MBean
+     * <code>com.batch.escalog:type=LogFmtLayout,name=[MetricsName]</code>
+     */
+    public void setMetrics(boolean metricsEnabled)
     {
-        String className = null;
-        if ( callerData != null && callerData.length > 0 )
-        {
-            className = callerData[ 0 ].getClassName();
+        this.metricsEnabled = metricsEnabled;
+    }
 
-            // FIXME this is dirty. Find a way to remove last callerData when log from LogFmt
-            if ( className.equals(LOGFMT_CLASS) || className.equals(LOGFMTBUILDER_CLASS) )
-            {
-                className = null;
-                if ( callerData.length > 1 )
-                {
-                    className = callerData[ 1 ].getClassName();
-                }
+    public void setMetricsName(String metricsName)
+    {
+        this.metricsName = metricsName;
+    }
 
-            }
-        }
-        return className;
+    /**
+     * Returns the metrics of this layout, null if they are not enabled or the layout is not started
+     */
+    public LogFmtLayoutMetrics getMetrics()
+    {
+        return metrics;
     }
 
-    @FunctionalInterface
-    interface KeyValueAppender
+// ----------------------------------->
+
+    @Override
+    public void start()
     {
-        void append(StringBuilder sb, ILoggingEvent iLoggingEvent);
+        this.plan = compile();
+        if ( metricsEnabled && metrics == null )
+        {
+            this.metrics = new LogFmtLayoutMetrics();
+            registerMetrics(metrics);
+        }
+        super.start();
     }
 
+    @Override
+    public void stop()
+    {
+        super.stop();
+        if ( metricsObjectName != null )
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsObjectName);
+            }
+            catch ( JMException e )
+            {
+                addWarn("Could not unregister the metrics MBean " + metricsObjectName, e);
+            }
+            metricsObjectName = null;
+        }
+        this.metrics = null;
+    }
 
     /**
-     * Appends the given key and value (escaped with escapeJava(String string)) to the given StringBuilder (appends key="value")
+     * Registers the metrics MBean. If the name is already used (by another layout), the identity of this layout is appended to it
      */
-    private static StringBuilder appendKeyValueAndEscape(StringBuilder sb, String key, Object value)
+    private void registerMetrics(LogFmtLayoutMetrics metrics)
     {
-        if ( key == null )
+        String name = metricsName != null ? metricsName : getContext() != null ? getContext().getName() : "default";
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
         {
-            return sb;
+            ObjectName objectName = new ObjectName("com.batch.escalog:type=LogFmtLayout,name=" + ObjectName.quote(name));
+            if ( server.isRegistered(objectName) )
+            {
+                objectName = new ObjectName("com.batch.escalog:type=LogFmtLayout,name="
+                    + ObjectName.quote(name + "-" + Integer.toHexString(System.identityHashCode(this))));
+            }
+            server.registerMBean(metrics, objectName);
+            this.metricsObjectName = objectName;
         }
-
-        if ( value == null )
+        catch ( JMException e )
         {
-            value = "null";
+            addWarn("Could not register the metrics MBean of " + name + ", metrics are only available with getMetrics()", e);
         }
+    }
 
-        sb.append(key).append('=');
+    /**
+     * Compiles the configuration into a render plan : the prefix and app name are rendered once for all into a header,
+     * followed by the appenders of the fields
+     */
+    private RenderPlan compile()
+    {
+        LogFmtBuffer header = new LogFmtBuffer();
 
-        String valueStr = value.toString();
+        // prefix
+        if ( prefix != null )
+        {
+            header.append(prefix).append((byte) ' ');
+        }
 
-        if ( needsQuoting(valueStr) )
+        // app_name
+        if ( appName != null )
         {
-            sb.append('"').append(escapeValue(valueStr)).append('"');
+            appendField(header, APP, appName);
         }
-        else
+
+        // keys written instead of the native keys found in MDC and markers, null if they are dropped
+        String renamePrefix = reservedKeyPolicy == ReservedKeyPolicy.RENAME && reservedKeyPrefix != null ? reservedKeyPrefix : "";
+        String[] reservedKeys = new String[ NativeKey.values().length ];
+        for ( NativeKey nativeKey : NativeKey.values() )
         {
-            sb.append(valueStr);
+            if ( !isReserved(nativeKey) )
+            {
+                // the key of a disabled feature is a custom key like any other
+                reservedKeys[ nativeKey.ordinal() ] = nativeKey.text + "=";
+            }
+            else if ( reservedKeyPolicy != ReservedKeyPolicy.DROP )
+            {
+                reservedKeys[ nativeKey.ordinal() ] = renamePrefix + nativeKey.text + "=";
+            }
         }
 
-        sb.append(' ');
-        return sb;
+        List<KeyValueAppender> fieldAppenders = customAppenders != null ? customAppenders : defaultAppenders;
+        return new RenderPlan(
+            header.toString(),
+            header.quotedValues(),
+            fieldAppenders.toArray(new KeyValueAppender[ 0 ]),
+            reservedKeys,
+            compileMdcPlan(reservedKeys),
+            maxValueLength,
+            maxValueLengths.isEmpty() ? null : new HashMap<>(maxValueLengths),
+            maxCustomFields,
+            maxLineLength,
+            new LogFmtThrowableRenderer(maxStackFrames, maxCauseDepth, excludedPackages),
+            errorRepeatInterval > 0 ? new LogFmtErrorFingerprints(errorRepeatInterval) : null
+        );
     }
 
-    private static boolean needsQuoting(String value)
+    /**
+     * Returns whether the native key can be written by the layout : error_id is only written when errors are fingerprinted,
+     * and truncated when fields can be dropped
+     */
+    private boolean isReserved(NativeKey nativeKey)
     {
-        for ( int i = 0; i < value.length(); i++ )
+        switch ( nativeKey )
         {
-            char c = value.charAt(i);
-
-            if ( !((c >= 'a' && c <= 'z') ||
-                (c >= 'A' && c <= 'Z') ||
-                (c >= '0' && c <= '9') ||
-                c == '-' || c == '.' || c == '_' || c == '/' || c == '@' || c == '^' || c == '+') )
-            {
-                return true;
-            }
+            case ERROR_ID:  return errorRepeatInterval > 0;
+            case TRUNCATED: return maxCustomFields != UNLIMITED || maxLineLength != UNLIMITED;
+            default:        return true;
         }
-        return false;
     }
 
-// ----------------------------------->
-
     /**
-     * Returns a StringBuilder representing the given string with characters escaped (see list of escaped characters here : https://docs.oracle.com/javase/tutorial/java/data/characters.html)
+     * Compiles the MDC settings into the keys to fetch (and their rendered key) and the keys to skip while iterating over the MDC
      */
-    public static StringBuilder escapeValue(String string)
+    private MdcPlan compileMdcPlan(String[] reservedKeys)
     {
-        StringBuilder sb = new StringBuilder();
+        Set<String> excluded = new HashSet<>(Arrays.asList(mdcExclude));
+        Set<String> included = mdcInclude != null ? new HashSet<>(Arrays.asList(mdcInclude)) : null;
 
-        for ( int i = 0; i < string.length(); i++ )
+        // the ordered keys first, then the other included keys
+        Set<String> fetched = new LinkedHashSet<>();
+        for ( String key : mdcOrder )
         {
-            char c = string.charAt(i);
-            switch ( c )
+            if ( included == null || included.contains(key) )
+            {
+                fetched.add(key);
+            }
+        }
+        if ( mdcInclude != null )
+        {
+            fetched.addAll(Arrays.asList(mdcInclude));
+        }
+        fetched.removeAll(excluded);
+
+        List<String> keys = new ArrayList<>();
+        List<String> fragments = new ArrayList<>();
+        for ( String key : fetched )
+        {
+            LogFmtBuffer fragment = new LogFmtBuffer();
+            if ( appendCustomKey(fragment, reservedKeys, key) )
             {
-                case '\t': sb.append("\\t");    break;
-                case '\b': sb.append("\\b");    break;
-                case '\n': sb.append("\\n");    break;
-                case '\r': sb.append("\\r");    break;
-                case '\f': sb.append("\\f");    break;
-                case '\"': sb.append("\\\"");   break;
-                case '\\': sb.append("\\\\");   break;
-                default:   sb.append(c);
+                keys.add(key);
+                fragments.add(fragment.toString());
             }
         }
 
-        return sb;
+        Set<String> skipped = null;
+        if ( included == null && !(excluded.isEmpty() && fetched.isEmpty()) )
+        {
+            skipped = new HashSet<>(excluded);
+            skipped.addAll(fetched);
+        }
+
+        return new MdcPlan(keys.toArray(new String[ 0 ]), fragments.toArray(new String[ 0 ]), included == null, skipped);
     }
 
-    private static String formatLogLevel(Level level)
+    public String doLayout(ILoggingEvent iLoggingEvent)
     {
-        if ( level == Level.WARN )
+        LogFmtBuffer buffer = buffers.acquire();
+        try
         {
-            return "warning";
+            render(buffer, iLoggingEvent);
+            return buffer.toString();
+        }
+        finally
+        {
+            buffers.release(buffer);
         }
-
-        return level.toString().toLowerCase();
     }
 
     /**
-     * Native keys that are automatically added by the Layout.
-     * Cannot be used with Markers and MDC
+     * Renders the log line of the given event (ending with a carriage return) at the end of the given buffer
      */
-    enum NativeKey
+    void render(LogFmtBuffer buffer, ILoggingEvent iLoggingEvent)
     {
-        TIME("time"),
-        LEVEL("level"),
-        MESSAGE("msg"),
+        RenderPlan plan = currentPlan();
+        LogFmtLayoutMetrics metrics = this.metrics;
+        long startTime = metrics != null ? System.nanoTime() : 0;
+        int quotedValues = buffer.quotedValues();
+
+        int start = buffer.length();
+        // leaves room for a cut value and the truncated field
+        buffer.lineLimit = plan.maxLineLength == UNLIMITED ? UNLIMITED : start + Math.max(plan.maxLineLength - CUT_VALUE_OVERHEAD - TRUNCATED_FIELD.length, 0);
+        buffer.customFields = 0;
+        buffer.truncated = false;
+
+        // prefix and app_name
+        buffer.append(plan.header);
+        buffer.countQuotedValues(plan.headerQuotedValues);
+
+        for ( KeyValueAppender keyValueAppender : plan.appenders )
+        {
+            keyValueAppender.append(buffer, iLoggingEvent);
+        }
+
+        if ( buffer.truncated )
+        {
+            buffer.append(TRUNCATED_FIELD);
+        }
+        // removes the last space char and adds a carriage return
+        else if ( buffer.length() > start )
+        {
+            buffer.setLastByte((byte) '\n');
+        }
+        else
+        {
+            buffer.append((byte) '\n');
+        }
+
+        if ( metrics != null )
+        {
+            metrics.record(iLoggingEvent.getLevel(), buffer.length() - start, buffer.quotedValues() - quotedValues, System.nanoTime() - startTime);
+        }
+    }
+
+
+    private void levelAppender(LogFmtBuffer buffer, ILoggingEvent iLoggingEvent)
+    {
+        buffer.append(levelField(iLoggingEvent.getLevel()));
+    }
+
+    private void timeAppender(LogFmtBuffer buffer, ILoggingEvent iLoggingEvent)
+    {
+        buffer.append(TIME.fragment);
+        timeRenderer.render(buffer, iLoggingEvent.getTimeStamp());
+        buffer.append((byte) ' ');
+    }
+
+    private void threadAppender(LogFmtBuffer buffer, ILoggingEvent iLoggingEvent)
+    {
+        String threadName = iLoggingEvent.getThreadName();
+        ThreadField field = threadFields.get();
+        if ( field.matches(threadName, buffer.isLatin1()) )
+        {
+            buffer.append(field.bytes, 0, field.length);
+            if ( field.quoted )
+            {
+                buffer.countQuotedValues(1);
+            }
+            return;
+        }
+
+        int start = buffer.length();
+        int quotedValues = buffer.quotedValues();
+        appendField(buffer, THREAD, threadName);
+        field.update(threadName, buffer, start, buffer.quotedValues() > quotedValues);
+    }
+
+    private void msgAppender(LogFmtBuffer buffer, ILoggingEvent iLoggingEvent)
+    {
+        if ( !fits(buffer) )
+        {
+            return;
+        }
+
+        String message = iLoggingEvent.getFormattedMessage();
+        buffer.append(MESSAGE.fragment)
+            .appendValue(message != null ? message : "null", valueBudget(buffer, currentPlan().maxValueLength(MESSAGE.text)))
+            .append((byte) ' ');
+    }
+
+    private void mdcAppender(LogFmtBuffer buffer, ILoggingEvent iLoggingEvent)
+    {
+        Map<String, String> mdc = iLoggingEvent.getMDCPropertyMap();
+        if ( mdc == null || mdc.isEmpty() )
+        {
+            return;
+        }
+
+        RenderPlan plan = currentPlan();
+        MdcPlan mdcPlan = plan.mdcPlan;
+
+        // included or ordered keys
+        for ( int i = 0; i < mdcPlan.keys.length; i++ )
+        {
+            String value = mdc.get(mdcPlan.keys[ i ]);
+            if ( value != null && customFieldFits(buffer, plan) )
+            {
+                buffer.append(mdcPlan.fragments[ i ]);
+                buffer.customFields++;
+                appendObjectValue(buffer, value, valueBudget(buffer, plan.maxValueLength(mdcPlan.keys[ i ])));
+            }
+        }
+
+        if ( mdcPlan.others )
+        {
+            String[] reservedKeys = plan.reservedKeys;
+            Set<String> skipped = mdcPlan.skipped;
+            mdc.forEach((k, v) ->
+            {
+                if ( (skipped == null || !skipped.contains(k)) && customFieldFits(buffer, plan) && appendCustomKey(buffer, reservedKeys, k) )
+                {
+                    buffer.customFields++;
+                    appendObjectValue(buffer, v, valueBudget(buffer, plan.maxValueLength(k)));
+                }
+            });
+        }
+    }
+
+    private void customFieldsAppender(LogFmtBuffer buffer, ILoggingEvent iLoggingEvent)
+    {
+        Marker marker = iLoggingEvent.getMarker();
+        if ( marker instanceof LogFmtBoundFields )
+        {
+            appendBoundFields(buffer, currentPlan(), (LogFmtBoundFields) marker);
+            return;
+        }
+
+        // marker given to a bound logger
+        if ( marker instanceof LogFmtBoundFields.WithMarker && !appendBoundFields(buffer, currentPlan(), ((LogFmtBoundFields.WithMarker) marker).bound) )
+        {
+            return;
+        }
+
+        Marker callerMarker = LogFmtBoundFields.unwrap(marker);
+        if ( callerMarker instanceof LogFmtMarker )
+        {
+            LogFmtMarker keyValueMarker = (LogFmtMarker) callerMarker;
+            RenderPlan plan = currentPlan();
+            String[] reservedKeys = plan.reservedKeys;
+            if ( keyValueMarker.bound != null && !appendBoundFields(buffer, plan, keyValueMarker.bound) )
+            {
+                return;
+            }
+            for ( int i = 0; i < keyValueMarker.size(); i++ )
+            {
+                if ( !customFieldFits(buffer, plan) )
+                {
+                    return;
+                }
+                if ( !appendCustomKey(buffer, reservedKeys, keyValueMarker.keyAt(i)) )
+                {
+                    continue;
+                }
+                buffer.customFields++;
+
+                LogFmtMarker.Primitive primitive = keyValueMarker.primitiveAt(i);
+                if ( primitive == null )
+                {
+                    appendObjectValue(buffer, keyValueMarker.valueAt(i), valueBudget(buffer, plan.maxValueLength(keyValueMarker.keyAt(i))));
+                    continue;
+                }
+
+                // unboxed values, rendered without any intermediate String
+                long bits = keyValueMarker.primitiveBitsAt(i);
+                switch ( primitive )
+                {
+                    case LONG:      buffer.appendLong(bits);                            break;
+                    case DOUBLE:    buffer.appendDouble(Double.longBitsToDouble(bits)); break;
+                    case CHAR:      buffer.appendValue((char) bits);                    break;
+                }
+                buffer.append((byte) ' ');
+            }
+
+            long sampleRate = LogFmtSamplingFilter.sampleRateOf(marker);
+            if ( sampleRate > 0 && customFieldFits(buffer, plan) && appendCustomKey(buffer, reservedKeys, LogFmtSamplingFilter.SAMPLE_RATE_KEY) )
+            {
+                buffer.customFields++;
+                buffer.appendLong(sampleRate).append((byte) ' ');
+            }
+        }
+    }
+
+    /**
+     * Appends the fields bound to a logger : their pre-rendered fragment in a single copy, or their pre-rendered values
+     * one by one when the fragment can't be used as is
+     * @return whether all of them were appended, false if the line is truncated
+     */
+    private static boolean appendBoundFields(LogFmtBuffer buffer, RenderPlan plan, LogFmtBoundFields bound)
+    {
+        // the fragment is UTF-8 encoded, and can't be cut
+        if ( bound.fragment != null && !plan.limited && !buffer.isLatin1() )
+        {
+            buffer.append(bound.fragment);
+            buffer.customFields += bound.size();
+            buffer.countQuotedValues(bound.quotedValues);
+            return true;
+        }
+
+        for ( int i = 0; i < bound.size(); i++ )
+        {
+            if ( !customFieldFits(buffer, plan) )
+            {
+                return false;
+            }
+            if ( !appendCustomKey(buffer, plan.reservedKeys, bound.keys[ i ]) )
+            {
+                continue;
+            }
+            buffer.customFields++;
+
+            int maxChars = valueBudget(buffer, plan.maxValueLength(bound.keys[ i ]));
+            if ( bound.values[ i ].length() > maxChars )
+            {
+                appendObjectValue(buffer, bound.values[ i ], maxChars);
+            }
+            else
+            {
+                buffer.append(bound.renderedValues[ i ]);
+                if ( bound.isQuoted(i) )
+                {
+                    buffer.countQuotedValues(1);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void errorAppender(LogFmtBuffer buffer, ILoggingEvent iLoggingEvent)
+    {
+        IThrowableProxy throwableProxy = iLoggingEvent.getThrowableProxy();
+        if ( throwableProxy == null )
+        {
+            return;
+        }
+
+        LogFmtLayoutMetrics metrics = this.metrics;
+        if ( metrics != null )
+        {
+            metrics.recordThrowable();
+        }
+
+        RenderPlan plan = currentPlan();
+        if ( plan.errorFingerprints == null )
+        {
+            buffer.append(ERROR.fragment);
+            plan.throwableRenderer.render(buffer, throwableProxy);
+            buffer.append((byte) ' ');
+            return;
+        }
+
+        long fingerprint = LogFmtErrorFingerprints.fingerprint(throwableProxy);
+        buffer.append(ERROR_ID.fragment).appendHex(fingerprint).append((byte) ' ');
+        buffer.append(ERROR.fragment);
+        if ( plan.errorFingerprints.shouldPrint(fingerprint, iLoggingEvent.getTimeStamp()) )
+        {
+            plan.throwableRenderer.render(buffer, throwableProxy);
+        }
+        else
+        {
+            // the stack trace was logged recently, with the same error_id
+            plan.throwableRenderer.renderSummary(buffer, throwableProxy);
+        }
+        buffer.append((byte) ' ');
+    }
+
+    private void packageAppender(LogFmtBuffer buffer, ILoggingEvent iLoggingEvent)
+    {
+        if ( packageSource != PackageSource.CALLER_DATA )
+        {
+            appendLoggerNameField(buffer, iLoggingEvent, 0);
+            return;
+        }
+
+        String className = getLastClassName(iLoggingEvent.getCallerData());
+        if ( className != null )
+        {
+            int lastPointPosition = className.lastIndexOf('.');
+            String pkg = lastPointPosition >= 0 ? className.substring(0, lastPointPosition) : "";
+            appendField(buffer, PACKAGE, pkg);
+        }
+
+    }
+
+    private void moduleAppender(LogFmtBuffer buffer, ILoggingEvent iLoggingEvent)
+    {
+        if ( packageSource != PackageSource.CALLER_DATA )
+        {
+            appendLoggerNameField(buffer, iLoggingEvent, 1);
+            return;
+        }
+
+        String className = getLastClassName(iLoggingEvent.getCallerData());
+        if ( className != null )
+        {
+            int lastPointPosition = className.lastIndexOf('.');
+            String module = lastPointPosition >= 0 ? className.substring(lastPointPosition + 1, className.length()) : className;
+            appendField(buffer, MODULE, module);
+        }
+
+    }
+
+    /**
+     * Appends the package (index 0) or module (index 1) field derived from the logger name, if the package source is loggerName
+     */
+    private void appendLoggerNameField(LogFmtBuffer buffer, ILoggingEvent iLoggingEvent, int index)
+    {
+        String loggerName = iLoggingEvent.getLoggerName();
+        if ( packageSource == PackageSource.NONE || loggerName == null )
+        {
+            return;
+        }
+
+        RenderedField[] fields = loggerNameFields.get(loggerName);
+        if ( fields == null )
+        {
+            int lastPointPosition = loggerName.lastIndexOf('.');
+            String pkg = lastPointPosition >= 0 ? loggerName.substring(0, lastPointPosition) : "";
+            String module = lastPointPosition >= 0 ? loggerName.substring(lastPointPosition + 1) : loggerName;
+
+            fields = new RenderedField[] {
+                new RenderedField(appendField(new LogFmtBuffer(), PACKAGE, pkg)),
+                new RenderedField(appendField(new LogFmtBuffer(), MODULE, module))
+            };
+
+            // logger names are usually a bounded set, but do not grow forever if they are not
+            if ( loggerNameFields.size() < MAX_CACHED_LOGGER_NAMES )
+            {
+                loggerNameFields.put(loggerName, fields);
+            }
+        }
+
+        buffer.append(fields[ index ].text);
+        if ( fields[ index ].quoted )
+        {
+            buffer.countQuotedValues(1);
+        }
+    }
+
+    private String getLastClassName(StackTraceElement[] callerData)
+    {
+        String className = null;
+        if ( callerData != null && callerData.length > 0 )
+        {
+            className = callerData[ 0 ].getClassName();
+
+            // FIXME this is dirty. Find a way to remove last callerData when log from LogFmt
+            if ( className.equals(LOGFMT_CLASS) || className.equals(LOGFMTBUILDER_CLASS) )
+            {
+                className = null;
+                if ( callerData.length > 1 )
+                {
+                    className = callerData[ 1 ].getClassName();
+                }
+
+            }
+        }
+        return className;
+    }
+
+    /**
+     * Returns the render plan, compiled again if the layout is not started or its configuration changed
+     */
+    private RenderPlan currentPlan()
+    {
+        RenderPlan plan = this.plan;
+        if ( plan == null )
+        {
+            this.plan = plan = compile();
+        }
+        return plan;
+    }
+
+    /**
+     * Configuration compiled by {@link #compile()}, immutable
+     */
+    private static final class RenderPlan
+    {
+        /**
+         * Prefix and app name fields, already rendered
+         */
+        final String header;
+
+        /**
+         * Number of quoted values in the header
+         */
+        final int headerQuotedValues;
+
+        final KeyValueAppender[] appenders;
+
+        /**
+         * Keys (followed by '=') written instead of the native keys found in MDC and markers, by ordinal, null for the ones that are dropped
+         */
+        final String[] reservedKeys;
+
+        final MdcPlan mdcPlan;
+
+        final int maxValueLength;
+
+        /**
+         * Max value lengths overriding maxValueLength by key, null if there's none
+         */
+        final Map<String, Integer> maxValueLengths;
+
+        final int maxCustomFields;
+
+        final int maxLineLength;
+
+        /**
+         * Whether any of the size limits is set
+         */
+        final boolean limited;
+
+        final LogFmtThrowableRenderer throwableRenderer;
+
+        /**
+         * Null if errors are not fingerprinted
+         */
+        final LogFmtErrorFingerprints errorFingerprints;
+
+        RenderPlan(String header, int headerQuotedValues, KeyValueAppender[] appenders, String[] reservedKeys, MdcPlan mdcPlan,
+                   int maxValueLength, Map<String, Integer> maxValueLengths, int maxCustomFields, int maxLineLength,
+                   LogFmtThrowableRenderer throwableRenderer, LogFmtErrorFingerprints errorFingerprints)
+        {
+            this.header = header;
+            this.headerQuotedValues = headerQuotedValues;
+            this.appenders = appenders;
+            this.reservedKeys = reservedKeys;
+            this.mdcPlan = mdcPlan;
+            this.maxValueLength = maxValueLength;
+            this.maxValueLengths = maxValueLengths;
+            this.maxCustomFields = maxCustomFields;
+            this.maxLineLength = maxLineLength;
+            this.limited = maxValueLength != UNLIMITED || maxValueLengths != null || maxCustomFields != UNLIMITED || maxLineLength != UNLIMITED;
+            this.throwableRenderer = throwableRenderer;
+            this.errorFingerprints = errorFingerprints;
+        }
+
+        int maxValueLength(String key)
+        {
+            return maxValueLengths != null ? maxValueLengths.getOrDefault(key, maxValueLength) : maxValueLength;
+        }
+    }
+
+    /**
+     * MDC settings compiled by {@link #compileMdcPlan(String[])}, immutable
+     */
+    private static final class MdcPlan
+    {
+        /**
+         * Keys fetched from the MDC, in their rendering order
+         */
+        final String[] keys;
+
+        /**
+         * Rendered keys (followed by '='), by index of the fetched keys
+         */
+        final String[] fragments;
+
+        /**
+         * Whether the other keys of the MDC are rendered too
+         */
+        final boolean others;
+
+        /**
+         * Keys not rendered while rendering the other keys (the excluded and the fetched ones), null if there's none
+         */
+        final Set<String> skipped;
+
+        MdcPlan(String[] keys, String[] fragments, boolean others, Set<String> skipped)
+        {
+            this.keys = keys;
+            this.fragments = fragments;
+            this.others = others;
+            this.skipped = skipped;
+        }
+    }
+
+    /**
+     * Field (key, escaped value and trailing space) already rendered
+     */
+    private static final class RenderedField
+    {
+        final String text;
+
+        final boolean quoted;
+
+        RenderedField(LogFmtBuffer buffer)
+        {
+            this.text = buffer.toString();
+            this.quoted = buffer.quotedValues() > 0;
+        }
+    }
+
+    /**
+     * <p>Thread field (key, escaped value and trailing space) already rendered, so that rendering it again is a single copy.</p>
+     * <p>Events are usually rendered by the thread that logged them, so there's one per thread and it is only
+     * rendered again when the thread is renamed. When events are rendered by another thread (ie. a logback AsyncAppender),
+     * it is updated in place for each new thread name.</p>
+     */
+    private static final class ThreadField
+    {
+        private String name;
+
+        private boolean latin1;
+
+        private byte[] bytes = new byte[ 0 ];
+
+        private int length;
+
+        private boolean quoted;
+
+        boolean matches(String threadName, boolean latin1)
+        {
+            return name != null && this.latin1 == latin1 && name.equals(threadName);
+        }
+
+        /**
+         * Copies the field rendered in the buffer from the given position
+         */
+        void update(String threadName, LogFmtBuffer buffer, int start, boolean quoted)
+        {
+            length = buffer.length() - start;
+            if ( bytes.length < length )
+            {
+                bytes = new byte[ length ];
+            }
+            System.arraycopy(buffer.array(), start, bytes, 0, length);
+            name = threadName;
+            latin1 = buffer.isLatin1();
+            this.quoted = quoted;
+        }
+    }
+
+    @FunctionalInterface
+    interface KeyValueAppender
+    {
+        void append(LogFmtBuffer buffer, ILoggingEvent iLoggingEvent);
+    }
+
+
+    /**
+     * Appends the given native key (pre-encoded) and value, quoted and escaped if needed
+     */
+    private static LogFmtBuffer appendField(LogFmtBuffer buffer, NativeKey key, String value)
+    {
+        return buffer.append(key.fragment).appendValue(value != null ? value : "null").append((byte) ' ');
+    }
+
+    /**
+     * Appends the key of a MDC or marker field followed by '=', unless it is null or a native key that must be dropped
+     * @param reservedKeys the keys to write instead of the native keys (by ordinal), null for the ones to drop
+     * @return whether the key was appended, and the value has to follow
+     */
+    private static boolean appendCustomKey(LogFmtBuffer buffer, String[] reservedKeys, String key)
+    {
+        if ( key == null )
+        {
+            return false;
+        }
+
+        NativeKey nativeKey = NativeKey.forKey(key);
+        if ( nativeKey == null )
+        {
+            buffer.append(key).append((byte) '=');
+            return true;
+        }
+
+        String reservedKey = reservedKeys[ nativeKey.ordinal() ];
+        if ( reservedKey == null )
+        {
+            return false;
+        }
+
+        buffer.append(reservedKey);
+        return true;
+    }
+
+    /**
+     * Appends the given value (quoted and escaped in a single pass if needed, and cut to maxChars chars) followed by a space
+     */
+    private static LogFmtBuffer appendObjectValue(LogFmtBuffer buffer, Object value, int maxChars)
+    {
+        if ( value == null )
+        {
+            value = "null";
+        }
+
+        // these types never need quotes
+        if ( value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte )
+        {
+            buffer.appendLong(((Number) value).longValue());
+        }
+        else if ( value instanceof Boolean )
+        {
+            buffer.append((Boolean) value ? "true" : "false");
+        }
+        else
+        {
+            buffer.appendValue(value.toString(), maxChars);
+        }
+
+        buffer.append((byte) ' ');
+        return buffer;
+    }
+
+    /**
+     * Returns whether a field can be added without reaching the max line length, marks the line as truncated if not
+     */
+    private static boolean fits(LogFmtBuffer buffer)
+    {
+        if ( buffer.length() < buffer.lineLimit )
+        {
+            return true;
+        }
+
+        buffer.truncated = true;
+        return false;
+    }
+
+    /**
+     * Returns whether a MDC or marker field can be added, marks the line as truncated if not
+     */
+    private static boolean customFieldFits(LogFmtBuffer buffer, RenderPlan plan)
+    {
+        if ( buffer.customFields >= plan.maxCustomFields )
+        {
+            buffer.truncated = true;
+            return false;
+        }
+        return fits(buffer);
+    }
+
+    /**
+     * Returns the max number of chars of the next value : its own limit, or what remains before the max line length
+     */
+    private static int valueBudget(LogFmtBuffer buffer, int maxValueLength)
+    {
+        return Math.min(maxValueLength, buffer.lineLimit - buffer.length());
+    }
+
+// ----------------------------------->
+
+    /**
+     * Returns a StringBuilder representing the given string with characters escaped (see list of escaped characters here : https://docs.oracle.com/javase/tutorial/java/data/characters.html)
+     */
+    public static StringBuilder escapeValue(String string)
+    {
+        StringBuilder sb = new StringBuilder(string.length() + 16);
+
+        for ( int i = 0; i < string.length(); i++ )
+        {
+            char c = string.charAt(i);
+            char escape = LogFmtBuffer.escapeOf(c);
+            if ( escape != 0 )
+            {
+                sb.append('\\').append(escape);
+            }
+            else
+            {
+                sb.append(c);
+            }
+        }
+
+        return sb;
+    }
+
+    /**
+     * Returns the pre-rendered level field of the given level
+     */
+    private static byte[] levelField(Level level)
+    {
+        switch ( level.levelInt )
+        {
+            case Level.ERROR_INT:   return LEVEL_FIELDS[ 0 ];
+            case Level.WARN_INT:    return LEVEL_FIELDS[ 1 ];
+            case Level.INFO_INT:    return LEVEL_FIELDS[ 2 ];
+            case Level.DEBUG_INT:   return LEVEL_FIELDS[ 3 ];
+            case Level.TRACE_INT:   return LEVEL_FIELDS[ 4 ];
+            case Level.ALL_INT:     return LEVEL_FIELDS[ 5 ];
+            default:                return LEVEL_FIELDS[ 6 ];
+        }
+    }
+
+    /**
+     * Splits a comma separated setting, ignoring the blank items
+     */
+    private static String[] splitList(String list)
+    {
+        List<String> items = new ArrayList<>();
+        for ( String item : list.split(",") )
+        {
+            if ( !item.trim().isEmpty() )
+            {
+                items.add(item.trim());
+            }
+        }
+        return items.toArray(new String[ 0 ]);
+    }
+
+    private static String formatLogLevel(Level level)
+    {
+        if ( level == Level.WARN )
+        {
+            return "warning";
+        }
+
+        return level.toString().toLowerCase();
+    }
+
+    /**
+     * Sources of the package and module fields
+     */
+    enum PackageSource
+    {
+        CALLER_DATA("callerData"),
+        LOGGER_NAME("loggerName"),
+        NONE("none");
+
+    // ----------------------------------->
+
+        final String text;
+
+    // ----------------------------------->
+
+        PackageSource(final String text)
+        {
+            this.text = text;
+        }
+    }
+
+    /**
+     * What happens to MDC and marker keys that collide with a native key
+     */
+    enum ReservedKeyPolicy
+    {
+        DROP("drop"),
+        RENAME("rename"),
+        KEEP("keep");
+
+    // ----------------------------------->
+
+        final String text;
+
+    // ----------------------------------->
+
+        ReservedKeyPolicy(final String text)
+        {
+            this.text = text;
+        }
+    }
+
+    /**
+     * Native keys that are automatically added by the Layout.
+     * Cannot be used with Markers and MDC
+     */
+    enum NativeKey
+    {
+        TIME("time"),
+        LEVEL("level"),
+        MESSAGE("msg"),
         APP("app"),
         THREAD("thread"),
         PACKAGE("package"),
         MODULE("module"),
-        ERROR("error");
+        ERROR("error"),
+        ERROR_ID("error_id"),
+        TRUNCATED("truncated");
 
     // ----------------------------------->
 
         final String text;
 
+        /**
+         * The key followed by '=', pre-encoded (keys are ASCII)
+         */
+        final byte[] fragment;
+
+        private static final int MAX_LENGTH = 9;
+
+        /**
+         * Native keys by (length << 7 | first char), no two native keys share both
+         */
+        private static final NativeKey[] BY_LENGTH_AND_FIRST_CHAR = new NativeKey[ (MAX_LENGTH + 1) << 7 ];
+
+        static
+        {
+            for ( NativeKey nativeKey : values() )
+            {
+                int slot = nativeKey.text.length() << 7 | nativeKey.text.charAt(0);
+                if ( nativeKey.text.length() > MAX_LENGTH || BY_LENGTH_AND_FIRST_CHAR[ slot ] != null )
+                {
+                    throw new IllegalStateException("Native key " + nativeKey.text + " cannot be looked up by length and first char");
+                }
+                BY_LENGTH_AND_FIRST_CHAR[ slot ] = nativeKey;
+            }
+        }
+
     // ----------------------------------->
 
         NativeKey(final String text)
         {
             this.text = text;
+            this.fragment = (text + "=").getBytes(StandardCharsets.US_ASCII);
         }
 
     // ----------------------------------->
@@ -382,16 +1514,21 @@ public class LogFmtLayout extends LayoutBase<ILoggingEvent>
 
         public static boolean isNativeKey(String key)
         {
-            NativeKey[] keys = values();
-            for ( int i = 0; i < keys.length; i++ )
+            return forKey(key) != null;
+        }
+
+        /**
+         * Returns the native key with the given text, or null. Looked up by length and first char, without iterating over the keys
+         */
+        static NativeKey forKey(String key)
+        {
+            if ( key == null || key.isEmpty() || key.length() > MAX_LENGTH || key.charAt(0) >= 0x80 )
             {
-                if ( keys[ i ].text.equals(key) )
-                {
-                    return true;
-                }
+                return null;
             }
 
-            return false;
+            NativeKey nativeKey = BY_LENGTH_AND_FIRST_CHAR[ key.length() << 7 | key.charAt(0) ];
+            return nativeKey != null && nativeKey.text.equals(key) ? nativeKey : null;
         }
     }
 }
@@ -0,0 +1,225 @@
+package com.batch.escalog;
+
+import ch.qos.logback.classic.Level;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Metrics of a {@link LogFmtLayout}, collected if its Metrics setting is enabled and exposed as a JMX MBean.</p>
+ * <p>All the counters are striped (LongAdder), so recording an event never makes the logging threads contend.
+ * Render times go to a histogram with power of 2 buckets (from 1 ns to about 1 s), which is precise enough
+ * to see the order of magnitude of the percentiles at the cost of one increment.</p>
+ */
+public class LogFmtLayoutMetrics implements LogFmtLayoutMetricsMBean
+{
+    /**
+     * Number of latency buckets, bucket i counts the render times in [2^(i-1), 2^i[ ns (the last one counts all the longer ones)
+     */
+    static final int LATENCY_BUCKETS = 31;
+
+    private final LongAdder events = new LongAdder();
+
+    private final LongAdder bytes = new LongAdder();
+
+    /**
+     * Events by level : error, warn, info, debug, trace
+     */
+    private final LongAdder[] levels = newAdders(5);
+
+    private final LongAdder quotedValues = new LongAdder();
+
+    private final LongAdder throwables = new LongAdder();
+
+    private final LongAdder totalLatency = new LongAdder();
+
+    private final LongAdder[] latencies = newAdders(LATENCY_BUCKETS);
+
+// ----------------------------------->
+
+    /**
+     * Records a rendered event
+     */
+    void record(Level level, int renderedBytes, int renderedQuotedValues, long latencyNanos)
+    {
+        events.increment();
+        bytes.add(renderedBytes);
+        switch ( level.levelInt )
+        {
+            case Level.ERROR_INT:   levels[ 0 ].increment(); break;
+            case Level.WARN_INT:    levels[ 1 ].increment(); break;
+            case Level.INFO_INT:    levels[ 2 ].increment(); break;
+            case Level.DEBUG_INT:   levels[ 3 ].increment(); break;
+            case Level.TRACE_INT:   levels[ 4 ].increment(); break;
+            default:                break;
+        }
+        if ( renderedQuotedValues > 0 )
+        {
+            quotedValues.add(renderedQuotedValues);
+        }
+
+        long latency = Math.max(latencyNanos, 0);
+        totalLatency.add(latency);
+        latencies[ Math.min(64 - Long.numberOfLeadingZeros(latency), LATENCY_BUCKETS - 1) ].increment();
+    }
+
+    /**
+     * Records a rendered error field
+     */
+    void recordThrowable()
+    {
+        throwables.increment();
+    }
+
+// ----------------------------------->
+
+    @Override
+    public long getEventsRendered()
+    {
+        return events.sum();
+    }
+
+    @Override
+    public long getBytesRendered()
+    {
+        return bytes.sum();
+    }
+
+    @Override
+    public long getErrorEvents()
+    {
+        return levels[ 0 ].sum();
+    }
+
+    @Override
+    public long getWarnEvents()
+    {
+        return levels[ 1 ].sum();
+    }
+
+    @Override
+    public long getInfoEvents()
+    {
+        return levels[ 2 ].sum();
+    }
+
+    @Override
+    public long getDebugEvents()
+    {
+        return levels[ 3 ].sum();
+    }
+
+    @Override
+    public long getTraceEvents()
+    {
+        return levels[ 4 ].sum();
+    }
+
+    @Override
+    public long getQuotedValues()
+    {
+        return quotedValues.sum();
+    }
+
+    @Override
+    public long getThrowablesRendered()
+    {
+        return throwables.sum();
+    }
+
+    @Override
+    public long[] getLatencyHistogram()
+    {
+        long[] histogram = new long[ LATENCY_BUCKETS ];
+        for ( int i = 0; i < LATENCY_BUCKETS; i++ )
+        {
+            histogram[ i ] = latencies[ i ].sum();
+        }
+        return histogram;
+    }
+
+    @Override
+    public long[] getLatencyBucketsNanos()
+    {
+        long[] buckets = new long[ LATENCY_BUCKETS ];
+        for ( int i = 0; i < LATENCY_BUCKETS - 1; i++ )
+        {
+            buckets[ i ] = 1L << i;
+        }
+        buckets[ LATENCY_BUCKETS - 1 ] = Long.MAX_VALUE;
+        return buckets;
+    }
+
+    @Override
+    public long getMeanLatencyNanos()
+    {
+        long count = events.sum();
+        return count > 0 ? totalLatency.sum() / count : 0;
+    }
+
+    @Override
+    public long getLatencyP50Nanos()
+    {
+        return latencyPercentile(0.50);
+    }
+
+    @Override
+    public long getLatencyP99Nanos()
+    {
+        return latencyPercentile(0.99);
+    }
+
+    @Override
+    public void reset()
+    {
+        events.reset();
+        bytes.reset();
+        quotedValues.reset();
+        throwables.reset();
+        totalLatency.reset();
+        for ( LongAdder level : levels )
+        {
+            level.reset();
+        }
+        for ( LongAdder latency : latencies )
+        {
+            latency.reset();
+        }
+    }
+
+// ----------------------------------->
+
+    /**
+     * Returns the upper bound of the bucket of the given percentile (0 to 1), 0 if there's no event
+     */
+    private long latencyPercentile(double percentile)
+    {
+        long[] histogram = getLatencyHistogram();
+        long count = 0;
+        for ( long bucket : histogram )
+        {
+            count += bucket;
+        }
+
+        long rank = (long) Math.ceil(count * percentile);
+        long seen = 0;
+        for ( int i = 0; i < LATENCY_BUCKETS; i++ )
+        {
+            seen += histogram[ i ];
+            if ( seen >= rank && seen > 0 )
+            {
+                return getLatencyBucketsNanos()[ i ];
+            }
+        }
+        return 0;
+    }
+
+    private static LongAdder[] newAdders(int count)
+    {
+        LongAdder[] adders = new LongAdder[ count ];
+        for ( int i = 0; i < count; i++ )
+        {
+            adders[ i ] = new LongAdder();
+        }
+        return adders;
+    }
+}
@@ -0,0 +1,53 @@
+package com.batch.escalog;
+
+/**
+ * JMX interface of {@link LogFmtLayoutMetrics}
+ */
+public interface LogFmtLayoutMetricsMBean
+{
+    long getEventsRendered();
+
+    long getBytesRendered();
+
+    long getErrorEvents();
+
+    long getWarnEvents();
+
+    long getInfoEvents();
+
+    long getDebugEvents();
+
+    long getTraceEvents();
+
+    /**
+     * Number of values that needed quotes (and possibly escaping), including the error field (always quoted)
+     * and the cached ones (time, app name, thread, package, module and bound fields)
+     */
+    long getQuotedValues();
+
+    long getThrowablesRendered();
+
+    /**
+     * Number of events rendered in each latency bucket, see {@link #getLatencyBucketsNanos()}
+     */
+    long[] getLatencyHistogram();
+
+    /**
+     * Upper bound (exclusive, in ns) of each latency bucket
+     */
+    long[] getLatencyBucketsNanos();
+
+    long getMeanLatencyNanos();
+
+    /**
+     * Upper bound of the latency bucket of the median event
+     */
+    long getLatencyP50Nanos();
+
+    /**
+     * Upper bound of the latency bucket of the 99th percentile event
+     */
+    long getLatencyP99Nanos();
+
+    void reset();
+}
@@ -0,0 +1,514 @@
+package com.batch.escalog;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.util.Duration;
+import ch.qos.logback.core.util.FileSize;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Appender that writes the logfmt lines (UTF-8) into memory mapped segment files.</p>
+ * <p>Lines are rendered by the logging threads into their own buffer, then copied into the mapping under a lock:
+ * writing an event is a memory copy instead of a write syscall. The operating system writes the pages to the disk,
+ * and the mapping is forced to the disk every FlushInterval (1 second by default), on roll and on stop.</p>
+ * <p>Segments are named <code>[File].0</code>, <code>[File].1</code>... (numbering continues after the existing ones).
+ * Each segment is pre-sized to SegmentSize (64 MB by default), and is rolled when it is full or, if RollInterval is set,
+ * when it is older than the interval. A closed segment is unmapped, then truncated to the size of its lines.</p>
+ * <p>If a segment can't be opened when rolling, the events are dropped and the appender retries to open it,
+ * with an exponential backoff (from 100 ms to 1 minute).</p>
+ * <p>Events already rendered by a {@link LogFmtAsyncAppender} are written as is.</p>
+ *
+ * <pre>
+ * &lt;appender name="mapped" class="com.batch.escalog.LogFmtMappedFileAppender"&gt;
+ *     &lt;File&gt;logs/app.log&lt;/File&gt;
+ *     &lt;layout class="com.batch.escalog.LogFmtLayout"/&gt;
+ *     &lt;SegmentSize&gt;64MB&lt;/SegmentSize&gt;
+ *     &lt;RollInterval&gt;1 hour&lt;/RollInterval&gt;
+ *     &lt;FlushInterval&gt;1 second&lt;/FlushInterval&gt;
+ * &lt;/appender&gt;
+ * </pre>
+ */
+public class LogFmtMappedFileAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
+{
+    private static final long DEFAULT_SEGMENT_SIZE = 64 * FileSize.MB_COEFFICIENT;
+
+    /**
+     * Delays before retrying to open a segment after a failed roll (ms)
+     */
+    static final long MIN_RETRY_DELAY = 100;
+    static final long MAX_RETRY_DELAY = 60_000;
+
+    /**
+     * sun.misc.Unsafe and its invokeCleaner(ByteBuffer) method (Java 9+), null if they are not available
+     */
+    private static final Object UNSAFE;
+    private static final Method UNMAPPER;
+
+    static
+    {
+        Object unsafe = null;
+        Method unmapper = null;
+        try
+        {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unmapper = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            unsafe = theUnsafe.get(null);
+        }
+        catch ( ReflectiveOperationException | RuntimeException e )
+        {
+            unmapper = null;
+        }
+        UNSAFE = unsafe;
+        UNMAPPER = unmapper;
+    }
+
+// ----------------------------------->
+// logback.xml parameters
+
+    /**
+     * Path of the segments, without their index
+     */
+    private String file;
+
+    /**
+     * The layout that renders the lines
+     */
+    private LogFmtLayout layout;
+
+    private FileSize segmentSize = new FileSize(DEFAULT_SEGMENT_SIZE);
+
+    /**
+     * Max age of a segment, null if segments are only rolled when they are full
+     */
+    private Duration rollInterval;
+
+    /**
+     * Interval between two forces of the mapping to the disk, null to only force on roll and stop
+     */
+    private Duration flushInterval = Duration.buildBySeconds(1);
+
+// ----------------------------------->
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private LogFmtBufferPool buffers;
+
+    private FileChannel channel;
+
+    /**
+     * Mapping of the current segment, null if no segment is open
+     */
+    private volatile MappedByteBuffer mapping;
+
+    private Path segmentPath;
+
+    private int segmentIndex;
+
+    /**
+     * Timestamp of the first event of the current segment
+     */
+    private long segmentStartTime;
+
+    /**
+     * Time (System.nanoTime) after which opening a segment is retried, only valid when the last roll failed
+     */
+    private long retryNanos;
+
+    /**
+     * Delay before the next retry (ms), 0 if the last roll did not fail
+     */
+    private long retryDelay;
+
+    /**
+     * Events dropped since the last roll failed
+     */
+    private long droppedEvents;
+
+    private ScheduledFuture<?> flushTask;
+
+// ----------------------------------->
+
+    public String getFile()
+    {
+        return file;
+    }
+
+    public void setFile(String file)
+    {
+        this.file = file;
+    }
+
+    public LogFmtLayout getLayout()
+    {
+        return layout;
+    }
+
+    public void setLayout(LogFmtLayout layout)
+    {
+        this.layout = layout;
+    }
+
+    public void setSegmentSize(FileSize segmentSize)
+    {
+        this.segmentSize = segmentSize;
+    }
+
+    public void setRollInterval(Duration rollInterval)
+    {
+        this.rollInterval = rollInterval;
+    }
+
+    public void setFlushInterval(Duration flushInterval)
+    {
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Returns the path of the segment being written, null if the appender is not started
+     */
+    public Path getSegmentPath()
+    {
+        return segmentPath;
+    }
+
+// ----------------------------------->
+
+    @Override
+    public void start()
+    {
+        if ( isStarted() )
+        {
+            return;
+        }
+
+        if ( file == null )
+        {
+            addError("No File set for the appender named [" + name + "].");
+            return;
+        }
+
+        if ( segmentSize.getSize() < 1 || segmentSize.getSize() > Integer.MAX_VALUE )
+        {
+            addError("Invalid segment size [" + segmentSize + "], it must be between 1 byte and 2 GB");
+            return;
+        }
+
+        if ( layout == null )
+        {
+            layout = new LogFmtLayout();
+            layout.setContext(getContext());
+        }
+
+        if ( !layout.isStarted() )
+        {
+            layout.start();
+        }
+
+        buffers = new LogFmtBufferPool(false);
+        retryDelay = 0;
+        droppedEvents = 0;
+
+        try
+        {
+            openSegment(nextSegmentIndex(), (int) segmentSize.getSize());
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            addError("Failed to open the first segment of " + file + ", the appender is not started", e);
+            return;
+        }
+
+        if ( UNMAPPER == null )
+        {
+            addWarn("Memory mapped segments can't be unmapped on this JVM : closed segments stay mapped until they are garbage collected, and can't be truncated on Windows");
+        }
+
+        if ( flushInterval != null && flushInterval.getMilliseconds() > 0 && getContext() != null )
+        {
+            long interval = flushInterval.getMilliseconds();
+            flushTask = getContext().getScheduledExecutorService().scheduleAtFixedRate(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        super.start();
+    }
+
+    @Override
+    public void stop()
+    {
+        if ( !isStarted() )
+        {
+            return;
+        }
+
+        super.stop();
+        if ( flushTask != null )
+        {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+
+        lock.lock();
+        try
+        {
+            closeSegment();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected void append(ILoggingEvent iLoggingEvent)
+    {
+        // already rendered by a LogFmtAsyncAppender
+        if ( iLoggingEvent instanceof LogFmtRenderedEvent )
+        {
+            write(((LogFmtRenderedEvent) iLoggingEvent).buffer, iLoggingEvent.getTimeStamp());
+            return;
+        }
+
+        LogFmtBuffer buffer = buffers.acquire();
+        try
+        {
+            layout.render(buffer, iLoggingEvent);
+            write(buffer, iLoggingEvent.getTimeStamp());
+        }
+        finally
+        {
+            buffers.release(buffer);
+        }
+    }
+
+    /**
+     * Forces the written lines to the disk, unless a logging thread is busy with the segment (they will be forced next time)
+     */
+    public void flush()
+    {
+        // the segment may be unmapped as soon as the lock is released
+        if ( !lock.tryLock() )
+        {
+            return;
+        }
+
+        try
+        {
+            if ( mapping != null )
+            {
+                mapping.force();
+            }
+        }
+        catch ( RuntimeException e )
+        {
+            addWarn("Failed to flush " + segmentPath, e);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+// ----------------------------------->
+
+    private void write(LogFmtBuffer buffer, long timestamp)
+    {
+        lock.lock();
+        try
+        {
+            if ( mapping == null && !retryRoll(buffer.length()) )
+            {
+                droppedEvents++;
+                return;
+            }
+
+            boolean empty = mapping.position() == 0;
+            boolean expired = rollInterval != null && !empty && timestamp - segmentStartTime >= rollInterval.getMilliseconds();
+            if ( expired || mapping.remaining() < buffer.length() )
+            {
+                closeSegment();
+                if ( !roll(buffer.length()) )
+                {
+                    droppedEvents++;
+                    return;
+                }
+                empty = true;
+            }
+            if ( empty )
+            {
+                segmentStartTime = timestamp;
+            }
+
+            mapping.put(buffer.array(), 0, buffer.length());
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens the next segment, large enough for a line of the given length. Must be called under the lock
+     * @return whether it is open, if not the events are dropped until {@link #retryRoll(int)} succeeds
+     */
+    private boolean roll(int length)
+    {
+        try
+        {
+            openSegment(segmentIndex + 1, (int) Math.max(segmentSize.getSize(), length));
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            retryDelay = retryDelay == 0 ? MIN_RETRY_DELAY : Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+            retryNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryDelay);
+            addError("Failed to open the segment " + (segmentIndex + 1) + " of " + file + ", the events are dropped until it is opened (next try in " + retryDelay + " ms)", e);
+            return false;
+        }
+
+        if ( retryDelay > 0 )
+        {
+            addInfo("Opened " + segmentPath + ", " + droppedEvents + " events were dropped");
+            retryDelay = 0;
+            droppedEvents = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Retries to open a segment after a failed roll, if the backoff delay is over. Must be called under the lock
+     */
+    private boolean retryRoll(int length)
+    {
+        // stopped
+        if ( !isStarted() || retryDelay == 0 )
+        {
+            return false;
+        }
+        return System.nanoTime() - retryNanos >= 0 && roll(length);
+    }
+
+    private void openSegment(int index, int size) throws IOException
+    {
+        Path path = Paths.get(file + "." + index);
+        if ( path.getParent() != null )
+        {
+            Files.createDirectories(path.getParent());
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try
+        {
+            long start = channel.size();
+            mapping = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            channel.close();
+            throw e;
+        }
+        this.channel = channel;
+        segmentPath = path;
+        segmentIndex = index;
+    }
+
+    /**
+     * Forces the current segment to the disk, truncates it to the size of its lines and closes it
+     */
+    private void closeSegment()
+    {
+        MappedByteBuffer current = mapping;
+        if ( current == null )
+        {
+            return;
+        }
+
+        mapping = null;
+        try
+        {
+            current.force();
+            long size = channel.size() - current.remaining();
+
+            // a mapped file can't be truncated on Windows, and the mapping would only be released by the GC
+            unmap(current);
+            channel.truncate(size);
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            addWarn("Failed to truncate " + segmentPath + ", it ends with unused zero bytes", e);
+        }
+
+        try
+        {
+            channel.close();
+        }
+        catch ( IOException e )
+        {
+            addWarn("Failed to close " + segmentPath, e);
+        }
+    }
+
+    /**
+     * Releases the mapping now with the JDK cleaner, if it is available. The buffer must not be used anymore
+     */
+    private static void unmap(MappedByteBuffer buffer)
+    {
+        if ( UNMAPPER == null )
+        {
+            return;
+        }
+
+        try
+        {
+            UNMAPPER.invoke(UNSAFE, buffer);
+        }
+        catch ( ReflectiveOperationException e )
+        {
+            // left to the GC
+        }
+    }
+
+    /**
+     * Returns the index following the highest existing segment
+     */
+    private int nextSegmentIndex()
+    {
+        File base = new File(file).getAbsoluteFile();
+        String prefix = base.getName() + ".";
+        String[] names = base.getParentFile() != null ? base.getParentFile().list() : null;
+
+        int next = 0;
+        if ( names != null )
+        {
+            for ( String name : names )
+            {
+                if ( name.startsWith(prefix) )
+                {
+                    try
+                    {
+                        next = Math.max(next, Integer.parseInt(name.substring(prefix.length())) + 1);
+                    }
+                    catch ( NumberFormatException e )
+                    {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        return next;
+    }
+}
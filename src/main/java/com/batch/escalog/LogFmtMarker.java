@@ -1,28 +1,45 @@
 package com.batch.escalog;
 
-import org.slf4j.Marker;
-import org.slf4j.MarkerFactory;
-
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 /**
  * Marker that stores key/value data meant to be used by LogFmtLayout.
  * @author Guillaume PERRUDIN
  */
-public class LogFmtMarker implements Marker
+public class LogFmtMarker extends LogFmtForwardingMarker
 {
     /**
-     * Common marker for all LogFmtMarkers
+     * Number of key-value pairs a marker can hold before growing
+     */
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     * Keys of the key-value pairs
+     */
+    private String[] keys = new String[ INITIAL_CAPACITY ];
+
+    /**
+     * Values of the key-value pairs, at the same index as their key
+     */
+    private Object[] values = new Object[ INITIAL_CAPACITY ];
+
+    /**
+     * Unboxed values of the primitive key-value pairs (whose value slot holds their {@link Primitive} type),
+     * allocated with the first primitive value
+     */
+    private long[] primitives;
+
+    /**
+     * Number of key-value pairs
      */
-    private static final Marker underlying = MarkerFactory.getMarker("LOGFMT");
+    private int size;
 
     /**
-     * List of key-value pairs
+     * Fields of the logger whose builder created the marker, rendered before the key-value pairs. Null if it has none
      */
-    private List<KeyValue> keyValues = new LinkedList<>();
+    LogFmtBoundFields bound;
 
 // ----------------------------------->
 
@@ -48,12 +65,129 @@ public class LogFmtMarker implements Marker
     {
         if ( key != null )
         {
-            this.keyValues.add(new KeyValue(key, value));
+            add(key, value);
+        }
+
+        return this;
+    }
+
+    /**
+     * <p>Adds the given key/value pair to the marker, without boxing the value.</p>
+     *
+     * @param key    the key of this marker
+     * @param value  the value, to be associated with the key
+     *
+     * @see #and(String, Object)
+     */
+    public LogFmtMarker and(String key, long value)
+    {
+        if ( key != null )
+        {
+            int i = add(key, Primitive.LONG);
+            primitives[ i ] = value;
+        }
+
+        return this;
+    }
+
+    /**
+     * @see #and(String, long)
+     */
+    public LogFmtMarker and(String key, int value)
+    {
+        return and(key, (long) value);
+    }
+
+    /**
+     * @see #and(String, long)
+     */
+    public LogFmtMarker and(String key, double value)
+    {
+        if ( key != null )
+        {
+            int i = add(key, Primitive.DOUBLE);
+            primitives[ i ] = Double.doubleToRawLongBits(value);
         }
 
         return this;
     }
 
+    /**
+     * <p>Adds the given key/value pair to the marker.</p>
+     * <p>Floats are kept boxed, to be rendered with {@link Float#toString(float)}.</p>
+     *
+     * @see #and(String, Object)
+     */
+    public LogFmtMarker and(String key, float value)
+    {
+        return and(key, (Object) value);
+    }
+
+    /**
+     * @see #and(String, long)
+     */
+    public LogFmtMarker and(String key, boolean value)
+    {
+        // Boolean instances are cached, no need to store them unboxed
+        return and(key, (Object) value);
+    }
+
+    /**
+     * @see #and(String, long)
+     */
+    public LogFmtMarker and(String key, char value)
+    {
+        if ( key != null )
+        {
+            int i = add(key, Primitive.CHAR);
+            primitives[ i ] = value;
+        }
+
+        return this;
+    }
+
+    /**
+     * Adds the given key and value (or primitive type) at the end of the arrays, and returns its index
+     */
+    private int add(String key, Object value)
+    {
+        if ( size == keys.length )
+        {
+            keys = Arrays.copyOf(keys, size << 1);
+            values = Arrays.copyOf(values, size << 1);
+            if ( primitives != null )
+            {
+                primitives = Arrays.copyOf(primitives, size << 1);
+            }
+        }
+
+        if ( primitives == null && value instanceof Primitive )
+        {
+            primitives = new long[ keys.length ];
+        }
+
+        keys[ size ] = key;
+        values[ size ] = value;
+        return size++;
+    }
+
+    /**
+     * <p>Adds the given key and lazily evaluated value to the marker.</p>
+     *
+     * <p>The supplier is only invoked when the value is rendered (ie. not if the event is filtered out),
+     * and at most once : the result is kept for the other appenders.
+     * If the supplier throws, the exception (converted to string) is used as the value.</p>
+     *
+     * @param key    the key of this marker
+     * @param value  the supplier of the value, to be associated with the key
+     *
+     * @see #and(String, Object)
+     */
+    public LogFmtMarker and(String key, Supplier<?> value)
+    {
+        return and(key, value != null ? new LazyValue(value) : null);
+    }
+
     /**
      * <p>Adds the given key/value pair to the marker.</p>
      *
@@ -77,7 +211,82 @@ public class LogFmtMarker implements Marker
      */
     public void forEach(BiConsumer<String, Object> consumer)
     {
-        keyValues.forEach( keyValue -> consumer.accept(keyValue.key, keyValue.value) );
+        for ( int i = 0; i < size; i++ )
+        {
+            consumer.accept(keys[ i ], valueAt(i));
+        }
+    }
+
+    /**
+     * Returns the number of key-value pairs
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the key of the i-th key-value pair
+     */
+    public String keyAt(int i)
+    {
+        return keys[ i ];
+    }
+
+    /**
+     * Returns the index of the last key-value pair with the given key, or -1 if there is none
+     */
+    public int indexOf(String key)
+    {
+        for ( int i = size - 1; i >= 0; i-- )
+        {
+            if ( key.equals(keys[ i ]) )
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value of the i-th key-value pair (evaluating it if it was given as a supplier)
+     */
+    public Object valueAt(int i)
+    {
+        Object value = values[ i ];
+        if ( value instanceof LazyValue )
+        {
+            return ((LazyValue) value).get();
+        }
+
+        if ( value instanceof Primitive )
+        {
+            switch ( (Primitive) value )
+            {
+                case LONG:      return primitives[ i ];
+                case DOUBLE:    return Double.longBitsToDouble(primitives[ i ]);
+                case CHAR:      return (char) primitives[ i ];
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * Returns the type of the i-th value if it is stored unboxed, null otherwise
+     */
+    Primitive primitiveAt(int i)
+    {
+        Object value = values[ i ];
+        return value instanceof Primitive ? (Primitive) value : null;
+    }
+
+    /**
+     * Returns the raw bits of the i-th value, if it is stored unboxed (the double bits for a double)
+     */
+    long primitiveBitsAt(int i)
+    {
+        return primitives[ i ];
     }
 
     /**
@@ -89,75 +298,117 @@ public class LogFmtMarker implements Marker
     }
 
     /**
-     * Creates a new LogFmtMarker with the given LogKey and value
+     * Creates a new LogFmtMarker with the given key and value
+     * @see #and(String, long)
      */
-    public static LogFmtMarker with(Object key, Object value)
+    public static LogFmtMarker with(String key, long value)
     {
         return new LogFmtMarker().and(key, value);
     }
 
-// ----------------------------------->
-// Marker interface methods
-
-    @Override
-    public String getName()
+    /**
+     * Creates a new LogFmtMarker with the given key and value
+     * @see #and(String, long)
+     */
+    public static LogFmtMarker with(String key, int value)
     {
-        return underlying.getName();
+        return new LogFmtMarker().and(key, value);
     }
 
-    @Override
-    public void add(Marker reference)
+    /**
+     * Creates a new LogFmtMarker with the given key and value
+     * @see #and(String, long)
+     */
+    public static LogFmtMarker with(String key, double value)
     {
-        underlying.add(reference);
+        return new LogFmtMarker().and(key, value);
     }
 
-    @Override
-    public boolean remove(Marker reference)
+    /**
+     * Creates a new LogFmtMarker with the given key and value
+     * @see #and(String, float)
+     */
+    public static LogFmtMarker with(String key, float value)
     {
-        return underlying.remove(reference);
+        return new LogFmtMarker().and(key, value);
     }
 
-    @Override
-    public boolean hasChildren()
+    /**
+     * Creates a new LogFmtMarker with the given key and value
+     * @see #and(String, long)
+     */
+    public static LogFmtMarker with(String key, boolean value)
     {
-        return underlying.hasChildren();
+        return new LogFmtMarker().and(key, value);
     }
 
-    @Override
-    public boolean hasReferences()
+    /**
+     * Creates a new LogFmtMarker with the given key and value
+     * @see #and(String, long)
+     */
+    public static LogFmtMarker with(String key, char value)
     {
-        return underlying.hasReferences();
+        return new LogFmtMarker().and(key, value);
     }
 
-    @Override
-    public Iterator iterator()
+    /**
+     * Creates a new LogFmtMarker with the given key and lazily evaluated value
+     * @see #and(String, Supplier)
+     */
+    public static LogFmtMarker with(String key, Supplier<?> value)
     {
-        return underlying.iterator();
+        return new LogFmtMarker().and(key, value);
     }
 
-    @Override
-    public boolean contains(Marker other)
+    /**
+     * Creates a new LogFmtMarker with the given LogKey and value
+     */
+    public static LogFmtMarker with(Object key, Object value)
     {
-        return underlying.contains(other);
+        return new LogFmtMarker().and(key, value);
     }
 
-    @Override
-    public boolean contains(String name)
+// ----------------------------------->
+
+    /**
+     * Type of the values stored unboxed
+     */
+    enum Primitive
     {
-        return underlying.contains(name);
+        LONG,
+        DOUBLE,
+        CHAR
     }
 
-// ----------------------------------->
-
-    private static class KeyValue
+    /**
+     * Value given as a supplier, evaluated at most once
+     */
+    private static final class LazyValue
     {
-        final String key;
-        final Object value;
+        private Supplier<?> supplier;
+
+        private Object value;
+
+        LazyValue(Supplier<?> supplier)
+        {
+            this.supplier = supplier;
+        }
 
-        KeyValue(String key, Object value)
+        synchronized Object get()
         {
-            this.key = key;
-            this.value = value;
+            if ( supplier != null )
+            {
+                try
+                {
+                    value = supplier.get();
+                }
+                catch ( RuntimeException e )
+                {
+                    value = e.toString();
+                }
+                supplier = null;
+            }
+            return value;
         }
     }
 }
@@ -0,0 +1,448 @@
+package com.batch.escalog;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Streaming parser of logfmt lines, such as the ones written by {@link LogFmtLayout}.</p>
+ * <p>The parser is a cursor over a CharSequence, or over a ByteBuffer of UTF-8 lines (a memory mapped file for instance) :
+ * it moves from line to line and from field to field, and only exposes the offsets of the current key and value in the source.
+ * Nothing is allocated per line or per field, unless the key or value is asked for as a String.</p>
+ *
+ * <pre>
+ * LogFmtParser parser = new LogFmtParser().reset(buffer);
+ * StringBuilder value = new StringBuilder();
+ * while ( parser.nextLine() )
+ * {
+ *     while ( parser.nextField() )
+ *     {
+ *         if ( parser.keyEquals("msg") )
+ *         {
+ *             value.setLength(0);
+ *             parser.appendValue(value);  // unescaped
+ *         }
+ *     }
+ * }
+ * </pre>
+ *
+ * <p>Values are unquoted and unescaped as {@link LogFmtLayout#escapeValue(String)} escaped them.
+ * A key without '=' (a bare key) has an empty value, and {@link #hasValue()} returns false.</p>
+ * <p><b>This parser is not thread safe.</b></p>
+ */
+public final class LogFmtParser
+{
+    private CharSequence chars;
+
+    private ByteBuffer bytes;
+
+    /**
+     * End of the source (exclusive)
+     */
+    private int limit;
+
+    /**
+     * Position of the next char to read
+     */
+    private int position;
+
+    private int lineStart;
+
+    /**
+     * End of the current line (exclusive, without its line separator)
+     */
+    private int lineEnd;
+
+    private int nextLineStart;
+
+    private int keyStart;
+
+    private int keyEnd;
+
+    private int valueStart;
+
+    private int valueEnd;
+
+    private boolean quoted;
+
+    private boolean escaped;
+
+    private boolean hasValue;
+
+// ----------------------------------->
+
+    /**
+     * Starts parsing the given chars
+     */
+    public LogFmtParser reset(CharSequence chars)
+    {
+        this.chars = chars;
+        this.bytes = null;
+        return reset(0, chars.length());
+    }
+
+    /**
+     * Starts parsing the given UTF-8 bytes, between the position and the limit of the buffer (which are not modified)
+     */
+    public LogFmtParser reset(ByteBuffer bytes)
+    {
+        this.chars = null;
+        this.bytes = bytes;
+        return reset(bytes.position(), bytes.limit());
+    }
+
+    private LogFmtParser reset(int start, int limit)
+    {
+        this.position = start;
+        this.limit = limit;
+        this.lineStart = start;
+        this.lineEnd = start;
+        this.nextLineStart = start;
+        return this;
+    }
+
+// ----------------------------------->
+
+    /**
+     * Moves to the next line (skipping what remains of the current one)
+     * @return false if there's no more line
+     */
+    public boolean nextLine()
+    {
+        if ( nextLineStart >= limit )
+        {
+            position = lineStart = lineEnd = limit;
+            return false;
+        }
+
+        lineStart = position = nextLineStart;
+        int end = lineStart;
+        while ( end < limit && at(end) != '\n' )
+        {
+            end++;
+        }
+        nextLineStart = end + 1;
+
+        // tolerates \r\n
+        if ( end > lineStart && at(end - 1) == '\r' )
+        {
+            end--;
+        }
+        lineEnd = end;
+        return true;
+    }
+
+    /**
+     * Moves to the next field of the current line
+     * @return false if there's no more field on the line
+     */
+    public boolean nextField()
+    {
+        // skips the separators
+        while ( position < lineEnd && at(position) == ' ' )
+        {
+            position++;
+        }
+        if ( position >= lineEnd )
+        {
+            return false;
+        }
+
+        keyStart = position;
+        int c;
+        while ( position < lineEnd && (c = at(position)) != '=' && c != ' ' )
+        {
+            position++;
+        }
+        keyEnd = position;
+
+        quoted = false;
+        escaped = false;
+        if ( position >= lineEnd || at(position) == ' ' )
+        {
+            hasValue = false;
+            valueStart = valueEnd = position;
+            return true;
+        }
+
+        // skips the '='
+        position++;
+        hasValue = true;
+
+        if ( position < lineEnd && at(position) == '"' )
+        {
+            quoted = true;
+            valueStart = ++position;
+            while ( position < lineEnd && (c = at(position)) != '"' )
+            {
+                if ( c == '\\' && position + 1 < lineEnd )
+                {
+                    escaped = true;
+                    position++;
+                }
+                position++;
+            }
+            valueEnd = position;
+
+            // skips the closing quote (a missing one ends the value at the end of the line)
+            if ( position < lineEnd )
+            {
+                position++;
+            }
+            return true;
+        }
+
+        valueStart = position;
+        while ( position < lineEnd && at(position) != ' ' )
+        {
+            position++;
+        }
+        valueEnd = position;
+        return true;
+    }
+
+// ----------------------------------->
+
+    public int lineStart()
+    {
+        return lineStart;
+    }
+
+    public int lineEnd()
+    {
+        return lineEnd;
+    }
+
+    public int keyStart()
+    {
+        return keyStart;
+    }
+
+    public int keyEnd()
+    {
+        return keyEnd;
+    }
+
+    /**
+     * Start of the raw value (after the opening quote if it is quoted)
+     */
+    public int valueStart()
+    {
+        return valueStart;
+    }
+
+    /**
+     * End of the raw value (before the closing quote if it is quoted)
+     */
+    public int valueEnd()
+    {
+        return valueEnd;
+    }
+
+    public boolean isQuoted()
+    {
+        return quoted;
+    }
+
+    /**
+     * Returns whether the raw value contains escape sequences, ie. if it differs from the unescaped value
+     */
+    public boolean isEscaped()
+    {
+        return escaped;
+    }
+
+    /**
+     * Returns false for a bare key (without '=')
+     */
+    public boolean hasValue()
+    {
+        return hasValue;
+    }
+
+    /**
+     * Returns whether the current key is the given one (without allocating anything, if the key is ASCII)
+     */
+    public boolean keyEquals(String key)
+    {
+        return rangeEquals(keyStart, keyEnd, key);
+    }
+
+    /**
+     * Returns whether the current (unescaped) value is the given one
+     */
+    public boolean valueEquals(String value)
+    {
+        if ( !escaped )
+        {
+            return rangeEquals(valueStart, valueEnd, value);
+        }
+        return value.contentEquals(appendValue(new StringBuilder(valueEnd - valueStart)));
+    }
+
+    public String key()
+    {
+        return appendDecoded(new StringBuilder(keyEnd - keyStart), keyStart, keyEnd).toString();
+    }
+
+    /**
+     * Returns the unescaped value
+     */
+    public String value()
+    {
+        return appendValue(new StringBuilder(valueEnd - valueStart)).toString();
+    }
+
+    /**
+     * Appends the unescaped value to the given builder
+     */
+    public StringBuilder appendValue(StringBuilder builder)
+    {
+        if ( !escaped )
+        {
+            return appendDecoded(builder, valueStart, valueEnd);
+        }
+
+        int runStart = valueStart;
+        for ( int i = valueStart; i < valueEnd; i++ )
+        {
+            if ( at(i) == '\\' && i + 1 < valueEnd )
+            {
+                appendDecoded(builder, runStart, i);
+                int escape = at(++i);
+                switch ( escape )
+                {
+                    case 't':   builder.append('\t'); break;
+                    case 'b':   builder.append('\b'); break;
+                    case 'n':   builder.append('\n'); break;
+                    case 'r':   builder.append('\r'); break;
+                    case 'f':   builder.append('\f'); break;
+                    case '"':   builder.append('"'); break;
+                    case '\\':  builder.append('\\'); break;
+                    default:    appendDecoded(builder, i - 1, i + 1); break;
+                }
+                runStart = i + 1;
+            }
+        }
+        return appendDecoded(builder, runStart, valueEnd);
+    }
+
+// ----------------------------------->
+
+    /**
+     * Returns the char (or byte) at the given position. Every char of the logfmt syntax is ASCII, so UTF-8 bytes are parsed as is
+     */
+    private int at(int i)
+    {
+        return bytes != null ? bytes.get(i) & 0xFF : chars.charAt(i);
+    }
+
+    /**
+     * Compares the source between start and end with the given string, decoding UTF-8 bytes if needed
+     */
+    private boolean rangeEquals(int start, int end, String s)
+    {
+        if ( bytes == null )
+        {
+            if ( end - start != s.length() )
+            {
+                return false;
+            }
+            for ( int i = 0; i < s.length(); i++ )
+            {
+                if ( chars.charAt(start + i) != s.charAt(i) )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // ASCII fast path, falls back to decoding at the first non ASCII byte
+        int i = 0;
+        int p = start;
+        for ( ; p < end && i < s.length(); p++, i++ )
+        {
+            int b = bytes.get(p);
+            if ( b < 0 || s.charAt(i) >= 0x80 )
+            {
+                return s.contentEquals(appendDecoded(new StringBuilder(end - start), start, end));
+            }
+            if ( b != s.charAt(i) )
+            {
+                return false;
+            }
+        }
+        return p == end && i == s.length();
+    }
+
+    /**
+     * Appends the source between start and end, decoding UTF-8 bytes if needed (malformed sequences become U+FFFD)
+     */
+    private StringBuilder appendDecoded(StringBuilder builder, int start, int end)
+    {
+        if ( bytes == null )
+        {
+            return builder.append(chars, start, end);
+        }
+
+        int i = start;
+        while ( i < end )
+        {
+            int b = bytes.get(i++);
+            if ( b >= 0 )
+            {
+                builder.append((char) b);
+                continue;
+            }
+
+            int extra;
+            int codePoint;
+            if ( (b & 0xE0) == 0xC0 )
+            {
+                extra = 1;
+                codePoint = b & 0x1F;
+            }
+            else if ( (b & 0xF0) == 0xE0 )
+            {
+                extra = 2;
+                codePoint = b & 0x0F;
+            }
+            else if ( (b & 0xF8) == 0xF0 )
+            {
+                extra = 3;
+                codePoint = b & 0x07;
+            }
+            else
+            {
+                builder.append('\uFFFD');
+                continue;
+            }
+
+            if ( i + extra > end )
+            {
+                builder.append('\uFFFD');
+                break;
+            }
+
+            boolean malformed = false;
+            for ( int k = 0; k < extra; k++ )
+            {
+                int next = bytes.get(i + k);
+                if ( (next & 0xC0) != 0x80 )
+                {
+                    malformed = true;
+                    break;
+                }
+                codePoint = (codePoint << 6) | (next & 0x3F);
+            }
+            if ( malformed || !Character.isValidCodePoint(codePoint) )
+            {
+                builder.append('\uFFFD');
+                continue;
+            }
+
+            i += extra;
+            builder.appendCodePoint(codePoint);
+        }
+        return builder;
+    }
+}
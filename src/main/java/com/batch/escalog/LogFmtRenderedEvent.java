@@ -0,0 +1,126 @@
+package com.batch.escalog;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+import org.slf4j.Marker;
+
+import java.util.Map;
+
+/**
+ * <p>Logging event whose logfmt line has already been rendered, by the thread that logged it.</p>
+ * <p>The getters delegate to the original event, and {@link LogFmtEncoder} writes the rendered line as is.
+ * Instances are reused (they are the slots of {@link LogFmtAsyncAppender}'s ring buffer) :
+ * they are only valid during the call to the appenders, and must not be kept.</p>
+ */
+final class LogFmtRenderedEvent implements ILoggingEvent
+{
+    /**
+     * The rendered line (UTF-8)
+     */
+    LogFmtBuffer buffer = new LogFmtBuffer();
+
+    /**
+     * The original event
+     */
+    ILoggingEvent event;
+
+    /**
+     * Sequence of the event in the ring buffer, set once the line is rendered
+     */
+    volatile long sequence = -1;
+
+// ----------------------------------->
+
+    @Override
+    public String getThreadName()
+    {
+        return event.getThreadName();
+    }
+
+    @Override
+    public Level getLevel()
+    {
+        return event.getLevel();
+    }
+
+    @Override
+    public String getMessage()
+    {
+        return event.getMessage();
+    }
+
+    @Override
+    public Object[] getArgumentArray()
+    {
+        return event.getArgumentArray();
+    }
+
+    @Override
+    public String getFormattedMessage()
+    {
+        return event.getFormattedMessage();
+    }
+
+    @Override
+    public String getLoggerName()
+    {
+        return event.getLoggerName();
+    }
+
+    @Override
+    public LoggerContextVO getLoggerContextVO()
+    {
+        return event.getLoggerContextVO();
+    }
+
+    @Override
+    public IThrowableProxy getThrowableProxy()
+    {
+        return event.getThrowableProxy();
+    }
+
+    @Override
+    public StackTraceElement[] getCallerData()
+    {
+        return event.getCallerData();
+    }
+
+    @Override
+    public boolean hasCallerData()
+    {
+        return event.hasCallerData();
+    }
+
+    @Override
+    public Marker getMarker()
+    {
+        return event.getMarker();
+    }
+
+    @Override
+    public Map<String, String> getMDCPropertyMap()
+    {
+        return event.getMDCPropertyMap();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public Map<String, String> getMdc()
+    {
+        return event.getMdc();
+    }
+
+    @Override
+    public long getTimeStamp()
+    {
+        return event.getTimeStamp();
+    }
+
+    @Override
+    public void prepareForDeferredProcessing()
+    {
+        // the line is already rendered
+    }
+}
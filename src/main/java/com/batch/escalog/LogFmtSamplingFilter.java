@@ -0,0 +1,433 @@
+package com.batch.escalog;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.turbo.TurboFilter;
+import ch.qos.logback.core.spi.FilterReply;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Logback TurboFilter that samples the events logged with a {@link LogFmtMarker}, per value of one of their keys.</p>
+ * <p>Events are either kept 1 time in N (SampleRate), or limited to a rate per second per value of the key (RatePerSecond and Burst).
+ * The events that match one of the AlwaysKeep rules, or above the sampled level (INFO by default), are always kept.
+ * Kept events get a <code>sample_rate</code> key : the number of events they stand for. It is not added to the marker,
+ * that may be shared by the caller, but kept for the thread and rendered by {@link LogFmtLayout} when the event is rendered
+ * on the logging thread (it is not with logback's AsyncAppender). When several sampling filters keep an event,
+ * their weights are multiplied.</p>
+ * <p>The filter never blocks : sampling only uses a thread local random, and each rate limit is a single CAS,
+ * with striped counters for the dropped events.</p>
+ *
+ * <pre>
+ * &lt;turboFilter class="com.batch.escalog.LogFmtSamplingFilter"&gt;
+ *     &lt;Key&gt;route&lt;/Key&gt;
+ *     &lt;RatePerSecond&gt;10&lt;/RatePerSecond&gt;
+ *     &lt;AlwaysKeep&gt;status&gt;=500&lt;/AlwaysKeep&gt;
+ * &lt;/turboFilter&gt;
+ * </pre>
+ */
+public class LogFmtSamplingFilter extends TurboFilter
+{
+    static final String SAMPLE_RATE_KEY = "sample_rate";
+
+    /**
+     * Max number of values of the key that get their own rate limit, the others share the same one
+     */
+    static final int MAX_BUCKETS = 10_000;
+
+    /**
+     * The key whose values are sampled independently, null to sample all the events together
+     */
+    private String key;
+
+    /**
+     * Events below or at this level are sampled
+     */
+    private Level level = Level.INFO;
+
+    /**
+     * Keeps 1 event in N
+     */
+    private int sampleRate = 1;
+
+    /**
+     * Max events per second per value of the key, 0 if not rate limited
+     */
+    private double ratePerSecond = 0;
+
+    /**
+     * Number of events that can be kept at once before the rate applies
+     */
+    private int burst = 1;
+
+    private final List<Rule> alwaysKeep = new ArrayList<>();
+
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * Shared by the values of the key once there are MAX_BUCKETS of them
+     */
+    private volatile Bucket overflowBucket;
+
+    /**
+     * Started filters, whose weights are rendered
+     */
+    private static final List<LogFmtSamplingFilter> startedFilters = new CopyOnWriteArrayList<>();
+
+    /**
+     * Weight of the last event decided by the thread, per filter so that filters don't clear the weights of the others
+     */
+    private final ThreadLocal<Sample> lastSample = ThreadLocal.withInitial(Sample::new);
+
+// ----------------------------------->
+
+    public void setKey(String key)
+    {
+        this.key = key;
+    }
+
+    public void setLevel(String level)
+    {
+        this.level = Level.toLevel(level, Level.INFO);
+    }
+
+    public void setSampleRate(int sampleRate)
+    {
+        if ( sampleRate < 1 )
+        {
+            addWarn("Invalid sample rate [" + sampleRate + "], it will be ignored");
+            return;
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    public void setRatePerSecond(double ratePerSecond)
+    {
+        if ( ratePerSecond <= 0 )
+        {
+            addWarn("Invalid rate per second [" + ratePerSecond + "], it will be ignored");
+            return;
+        }
+        this.ratePerSecond = ratePerSecond;
+    }
+
+    public void setBurst(int burst)
+    {
+        if ( burst < 1 )
+        {
+            addWarn("Invalid burst [" + burst + "], it will be ignored");
+            return;
+        }
+        this.burst = burst;
+    }
+
+    /**
+     * Adds rules (comma separated) of events that are always kept, like <code>status&gt;=500</code>.
+     * Operators are =, !=, &lt;, &lt;=, &gt; and &gt;= (numeric if both sides are numbers).
+     * Invalid rules are ignored.
+     */
+    public void setAlwaysKeep(String rules)
+    {
+        for ( String rule : rules.split(",") )
+        {
+            Rule parsed = Rule.parse(rule.trim());
+            if ( parsed != null )
+            {
+                alwaysKeep.add(parsed);
+            }
+            else if ( !rule.trim().isEmpty() )
+            {
+                addWarn("Invalid always keep rule [" + rule + "], it will be ignored");
+            }
+        }
+    }
+
+// ----------------------------------->
+
+    @Override
+    public void start()
+    {
+        overflowBucket = newBucket();
+        super.start();
+        startedFilters.add(this);
+    }
+
+    @Override
+    public void stop()
+    {
+        startedFilters.remove(this);
+        super.stop();
+    }
+
+    @Override
+    public FilterReply decide(Marker marker, Logger logger, Level level, String format, Object[] params, Throwable t)
+    {
+        // isXxxEnabled(marker) calls are not sampled, only actual events
+        Marker callerMarker = LogFmtBoundFields.unwrap(marker);
+        if ( !isStarted() || !(callerMarker instanceof LogFmtMarker) || format == null )
+        {
+            return FilterReply.NEUTRAL;
+        }
+
+        // the weight of the previous event must not be rendered with this one, even if it has the same marker
+        Sample sample = lastSample.get();
+        sample.marker = null;
+
+        // turbo filters run before the level check : events the logger discards anyway must not use tokens.
+        // Compared directly, as Logger.isEnabledFor would run the turbo filters again
+        if ( level.levelInt > this.level.levelInt || level.levelInt < logger.getEffectiveLevel().levelInt )
+        {
+            return FilterReply.NEUTRAL;
+        }
+
+        LogFmtMarker logFmtMarker = (LogFmtMarker) callerMarker;
+        for ( Rule rule : alwaysKeep )
+        {
+            if ( rule.matches(logFmtMarker) )
+            {
+                return FilterReply.NEUTRAL;
+            }
+        }
+
+        long weight;
+        if ( ratePerSecond > 0 )
+        {
+            weight = bucketOf(logFmtMarker).tryAcquire(System.nanoTime());
+        }
+        else
+        {
+            weight = sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0 ? sampleRate : 0;
+        }
+
+        if ( weight == 0 )
+        {
+            return FilterReply.DENY;
+        }
+
+        if ( weight > 1 && logFmtMarker.indexOf(SAMPLE_RATE_KEY) < 0 )
+        {
+            sample.marker = marker;
+            sample.weight = weight;
+        }
+        return FilterReply.NEUTRAL;
+    }
+
+    /**
+     * Returns the weight given by all the filters to the event the current thread is logging with the given marker, 0 if it has none
+     */
+    static long sampleRateOf(Marker marker)
+    {
+        long weight = 0;
+        for ( LogFmtSamplingFilter filter : startedFilters )
+        {
+            Sample sample = filter.lastSample.get();
+            if ( sample.marker == marker )
+            {
+                weight = Math.max(weight, 1) * sample.weight;
+            }
+        }
+        return weight;
+    }
+
+    private Bucket bucketOf(LogFmtMarker marker)
+    {
+        int index = key != null ? marker.indexOf(key) : -1;
+        String value = index >= 0 ? String.valueOf(marker.valueAt(index)) : "";
+
+        Bucket bucket = buckets.get(value);
+        if ( bucket == null )
+        {
+            if ( buckets.size() >= MAX_BUCKETS )
+            {
+                return overflowBucket;
+            }
+            bucket = buckets.computeIfAbsent(value, v -> newBucket());
+        }
+        return bucket;
+    }
+
+    private Bucket newBucket()
+    {
+        long interval = (long) (1_000_000_000L / Math.max(ratePerSecond, 1e-9));
+        return new Bucket(interval, interval * (burst - 1));
+    }
+
+// ----------------------------------->
+
+    /**
+     * <p>Rate limit, as a generic cell rate algorithm: a token bucket whose whole state is the theoretical arrival time
+     * of the next event, updated with a single CAS.</p>
+     */
+    private static final class Bucket
+    {
+        /**
+         * Time between two events at the rate (ns)
+         */
+        private final long interval;
+
+        /**
+         * How far the theoretical arrival time may be ahead of now (ns)
+         */
+        private final long tolerance;
+
+        private final AtomicLong theoreticalArrival = new AtomicLong(Long.MIN_VALUE / 2);
+
+        /**
+         * Events dropped since the last one kept
+         */
+        private final LongAdder dropped = new LongAdder();
+
+        Bucket(long interval, long tolerance)
+        {
+            this.interval = interval;
+            this.tolerance = tolerance;
+        }
+
+        /**
+         * Returns 0 if the event must be dropped, or the number of events it stands for (itself and the ones dropped before it)
+         */
+        long tryAcquire(long now)
+        {
+            while ( true )
+            {
+                long arrival = theoreticalArrival.get();
+                long start = Math.max(arrival, now);
+                if ( start - now > tolerance )
+                {
+                    dropped.increment();
+                    return 0;
+                }
+
+                if ( theoreticalArrival.compareAndSet(arrival, start + interval) )
+                {
+                    return 1 + dropped.sumThenReset();
+                }
+            }
+        }
+    }
+
+    /**
+     * Weight of a kept event, identified by its marker
+     */
+    private static final class Sample
+    {
+        /**
+         * Null if the last event has no weight
+         */
+        private Marker marker;
+
+        private long weight;
+    }
+
+    /**
+     * A comparison between the value of a key and a constant
+     */
+    static final class Rule
+    {
+        private static final String[] OPERATORS = { ">=", "<=", "!=", ">", "<", "=" };
+
+        final String key;
+        final String operator;
+        final String value;
+
+        /**
+         * The value as a number, NaN if it is not one
+         */
+        final double number;
+
+        private Rule(String key, String operator, String value)
+        {
+            this.key = key;
+            this.operator = operator;
+            this.value = value;
+            this.number = parseNumber(value);
+        }
+
+        /**
+         * Parses a rule like <code>key&gt;=value</code>, returns null if it is invalid
+         */
+        static Rule parse(String rule)
+        {
+            for ( String operator : OPERATORS )
+            {
+                int position = rule.indexOf(operator);
+                if ( position > 0 && position + operator.length() < rule.length() )
+                {
+                    return new Rule(rule.substring(0, position).trim(), operator, rule.substring(position + operator.length()).trim());
+                }
+            }
+            return null;
+        }
+
+        boolean matches(LogFmtMarker marker)
+        {
+            int index = marker.indexOf(key);
+            if ( index < 0 )
+            {
+                return false;
+            }
+
+            if ( !Double.isNaN(number) )
+            {
+                double actual = numberAt(marker, index);
+                if ( !Double.isNaN(actual) )
+                {
+                    return compare(Double.compare(actual, number));
+                }
+            }
+
+            return compare(String.valueOf(marker.valueAt(index)).compareTo(value));
+        }
+
+        /**
+         * Returns the i-th value of the marker as a number (without boxing it if it is unboxed), NaN if it is not one
+         */
+        private static double numberAt(LogFmtMarker marker, int i)
+        {
+            LogFmtMarker.Primitive primitive = marker.primitiveAt(i);
+            if ( primitive == LogFmtMarker.Primitive.LONG )
+            {
+                return marker.primitiveBitsAt(i);
+            }
+            if ( primitive == LogFmtMarker.Primitive.DOUBLE )
+            {
+                return Double.longBitsToDouble(marker.primitiveBitsAt(i));
+            }
+
+            Object value = marker.valueAt(i);
+            return value instanceof Number ? ((Number) value).doubleValue() : parseNumber(String.valueOf(value));
+        }
+
+        private boolean compare(int comparison)
+        {
+            switch ( operator )
+            {
+                case ">=":  return comparison >= 0;
+                case "<=":  return comparison <= 0;
+                case "!=":  return comparison != 0;
+                case ">":   return comparison > 0;
+                case "<":   return comparison < 0;
+                default:    return comparison == 0;
+            }
+        }
+
+        private static double parseNumber(String value)
+        {
+            try
+            {
+                return Double.parseDouble(value);
+            }
+            catch ( NumberFormatException e )
+            {
+                return Double.NaN;
+            }
+        }
+    }
+}
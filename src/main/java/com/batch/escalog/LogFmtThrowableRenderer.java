@@ -0,0 +1,249 @@
+package com.batch.escalog;
+
+import ch.qos.logback.classic.spi.ClassPackagingData;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import ch.qos.logback.core.CoreConstants;
+
+/**
+ * <p>Renders the value of the error field, quoted and escaped, directly into a {@link LogFmtBuffer}.</p>
+ * <p>The output follows logback's ThrowableProxyUtil.asString (causes, suppressed throwables, folding of the frames
+ * in common with the enclosing throwable), but it is streamed frame by frame: the stack trace is never built as a String.</p>
+ * <p>The number of frames per throwable and the depth of nested throwables can be limited,
+ * and the frames of some packages can be excluded. Each run of skipped frames is replaced by a "... N frames" line.</p>
+ * <p>Instances are immutable.</p>
+ */
+final class LogFmtThrowableRenderer
+{
+    static final int UNLIMITED = Integer.MAX_VALUE;
+
+    /**
+     * The line separator, escaped
+     */
+    private static final byte[] LINE_SEPARATOR = new LogFmtBuffer()
+        .appendEscaped(CoreConstants.LINE_SEPARATOR, 0, CoreConstants.LINE_SEPARATOR.length())
+        .toByteArray();
+
+    /**
+     * Max number of frames rendered per throwable
+     */
+    private final int maxFrames;
+
+    /**
+     * Max depth of the causes and suppressed throwables rendered under the logged one
+     */
+    private final int maxCauseDepth;
+
+    /**
+     * Prefixes (ending with a dot) of the classes whose frames are not rendered
+     */
+    private final String[] excludedPackages;
+
+// ----------------------------------->
+
+    LogFmtThrowableRenderer(int maxFrames, int maxCauseDepth, String[] excludedPackages)
+    {
+        this.maxFrames = maxFrames;
+        this.maxCauseDepth = maxCauseDepth;
+        this.excludedPackages = new String[ excludedPackages.length ];
+        for ( int i = 0; i < excludedPackages.length; i++ )
+        {
+            String excludedPackage = excludedPackages[ i ];
+            this.excludedPackages[ i ] = excludedPackage.endsWith(".") ? excludedPackage : excludedPackage + ".";
+        }
+    }
+
+// ----------------------------------->
+
+    /**
+     * Renders the given throwable into the buffer, as a quoted value
+     */
+    void render(LogFmtBuffer buffer, IThrowableProxy throwableProxy)
+    {
+        buffer.append((byte) '"');
+        renderThrowable(buffer, null, 1, 0, throwableProxy);
+        buffer.append((byte) '"');
+        buffer.countQuotedValues(1);
+    }
+
+    /**
+     * Renders only the first line of the given throwable (class and message) into the buffer, as a quoted value
+     */
+    void renderSummary(LogFmtBuffer buffer, IThrowableProxy throwableProxy)
+    {
+        buffer.append((byte) '"');
+        appendEscaped(buffer, throwableProxy.getClassName());
+        buffer.append((byte) ':').append((byte) ' ');
+        appendEscaped(buffer, String.valueOf(throwableProxy.getMessage()));
+        buffer.append((byte) '"');
+        buffer.countQuotedValues(1);
+    }
+
+    private void renderThrowable(LogFmtBuffer buffer, String prefix, int indent, int depth, IThrowableProxy throwableProxy)
+    {
+        // first line
+        appendIndent(buffer, indent - 1);
+        if ( prefix != null )
+        {
+            appendEscaped(buffer, prefix);
+        }
+        appendEscaped(buffer, throwableProxy.getClassName());
+        buffer.append((byte) ':').append((byte) ' ');
+        appendEscaped(buffer, String.valueOf(throwableProxy.getMessage()));
+        buffer.append(LINE_SEPARATOR);
+
+        renderFrames(buffer, indent, throwableProxy);
+
+        IThrowableProxy[] suppressed = throwableProxy.getSuppressed();
+        if ( suppressed != null && suppressed.length > 0 )
+        {
+            if ( depth < maxCauseDepth )
+            {
+                for ( IThrowableProxy current : suppressed )
+                {
+                    renderThrowable(buffer, CoreConstants.SUPPRESSED, indent + 1, depth + 1, current);
+                }
+            }
+            else
+            {
+                appendOmitted(buffer, indent, suppressed.length, " suppressed omitted");
+            }
+        }
+
+        IThrowableProxy cause = throwableProxy.getCause();
+        if ( cause != null )
+        {
+            if ( depth < maxCauseDepth )
+            {
+                renderThrowable(buffer, CoreConstants.CAUSED_BY, indent, depth + 1, cause);
+            }
+            else
+            {
+                int causes = 0;
+                for ( ; cause != null; cause = cause.getCause() )
+                {
+                    causes++;
+                }
+                appendOmitted(buffer, indent, causes, " causes omitted");
+            }
+        }
+    }
+
+    private void renderFrames(LogFmtBuffer buffer, int indent, IThrowableProxy throwableProxy)
+    {
+        StackTraceElementProxy[] steps = throwableProxy.getStackTraceElementProxyArray();
+        int commonFrames = throwableProxy.getCommonFrames();
+        int end = steps.length - commonFrames;
+
+        int rendered = 0;
+        int excluded = 0;
+        for ( int i = 0; i < end; i++ )
+        {
+            StackTraceElement ste = steps[ i ].getStackTraceElement();
+            if ( isExcluded(ste.getClassName()) )
+            {
+                excluded++;
+                continue;
+            }
+
+            if ( excluded > 0 )
+            {
+                appendOmitted(buffer, indent, excluded, " frames excluded");
+                excluded = 0;
+            }
+
+            if ( rendered == maxFrames )
+            {
+                appendOmitted(buffer, indent, end - i, " frames truncated");
+                break;
+            }
+
+            renderFrame(buffer, indent, steps[ i ], ste);
+            rendered++;
+        }
+
+        if ( excluded > 0 )
+        {
+            appendOmitted(buffer, indent, excluded, " frames excluded");
+        }
+
+        if ( commonFrames > 0 )
+        {
+            appendOmitted(buffer, indent, commonFrames, " common frames omitted");
+        }
+    }
+
+    /**
+     * Renders a frame as StackTraceElement.toString does on Java 8, followed by its packaging data if any
+     */
+    private static void renderFrame(LogFmtBuffer buffer, int indent, StackTraceElementProxy step, StackTraceElement ste)
+    {
+        appendIndent(buffer, indent);
+        buffer.append((byte) 'a').append((byte) 't').append((byte) ' ');
+        appendEscaped(buffer, ste.getClassName());
+        buffer.append((byte) '.');
+        appendEscaped(buffer, ste.getMethodName());
+        buffer.append((byte) '(');
+        if ( ste.isNativeMethod() )
+        {
+            buffer.append("Native Method");
+        }
+        else if ( ste.getFileName() == null )
+        {
+            buffer.append("Unknown Source");
+        }
+        else
+        {
+            appendEscaped(buffer, ste.getFileName());
+            if ( ste.getLineNumber() >= 0 )
+            {
+                buffer.append((byte) ':').appendLong(ste.getLineNumber());
+            }
+        }
+        buffer.append((byte) ')');
+
+        ClassPackagingData packagingData = step.getClassPackagingData();
+        if ( packagingData != null )
+        {
+            buffer.append(packagingData.isExact() ? " [" : " ~[");
+            appendEscaped(buffer, packagingData.getCodeLocation());
+            buffer.append((byte) ':');
+            appendEscaped(buffer, packagingData.getVersion());
+            buffer.append((byte) ']');
+        }
+
+        buffer.append(LINE_SEPARATOR);
+    }
+
+    private boolean isExcluded(String className)
+    {
+        for ( String excludedPackage : excludedPackages )
+        {
+            if ( className.startsWith(excludedPackage) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void appendOmitted(LogFmtBuffer buffer, int indent, int count, String what)
+    {
+        appendIndent(buffer, indent);
+        buffer.append((byte) '.').append((byte) '.').append((byte) '.').append((byte) ' ').appendLong(count).append(what);
+        buffer.append(LINE_SEPARATOR);
+    }
+
+    private static void appendIndent(LogFmtBuffer buffer, int indent)
+    {
+        for ( int i = 0; i < indent; i++ )
+        {
+            buffer.append((byte) '\\').append((byte) 't');
+        }
+    }
+
+    private static void appendEscaped(LogFmtBuffer buffer, String s)
+    {
+        buffer.appendEscaped(s, 0, s.length());
+    }
+}
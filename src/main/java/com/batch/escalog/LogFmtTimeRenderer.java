@@ -0,0 +1,281 @@
+package com.batch.escalog;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * <p>Renders the value of the time field, already escaped, directly into a {@link LogFmtBuffer}.</p>
+ * <p>For date patterns, the part of the date that only changes every second is formatted once per second
+ * and cached: rendering a timestamp is then a bulk copy plus the sub-second digits, without creating any Date or String.</p>
+ * <p>Supported formats are any {@link DateTimeFormatter} pattern, plus the following presets :
+ * {@value #RFC3339}, {@value #RFC3339_MILLIS}, {@value #RFC3339_MICROS}, {@value #EPOCH_MILLIS} and {@value #EPOCH_NANOS}.<br>
+ * Logback only provides millisecond precision, so micro and nano seconds are always zeros.</p>
+ */
+abstract class LogFmtTimeRenderer
+{
+    static final String RFC3339 = "RFC3339";
+    static final String RFC3339_MILLIS = "RFC3339_MILLIS";
+    static final String RFC3339_MICROS = "RFC3339_MICROS";
+    static final String EPOCH_MILLIS = "EPOCH_MILLIS";
+    static final String EPOCH_NANOS = "EPOCH_NANOS";
+
+// ----------------------------------->
+
+    /**
+     * Renders the given timestamp (ms since epoch) into the buffer, quoted if needed
+     */
+    abstract void render(LogFmtBuffer buffer, long timestamp);
+
+// ----------------------------------->
+
+    /**
+     * Creates the renderer of the given format (a preset or a DateTimeFormatter pattern), in the default time zone
+     * @throws IllegalArgumentException if the pattern is not valid
+     */
+    static LogFmtTimeRenderer forFormat(String format)
+    {
+        switch ( format )
+        {
+            case RFC3339:           return new PatternRenderer("yyyy-MM-dd'T'HH:mm:ssXXX");
+            case RFC3339_MILLIS:    return new PatternRenderer("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+            case RFC3339_MICROS:    return new PatternRenderer("yyyy-MM-dd'T'HH:mm:ss.SSSSSSXXX");
+            case EPOCH_MILLIS:      return new EpochRenderer(0);
+            case EPOCH_NANOS:       return new EpochRenderer(6);
+            default:                return new PatternRenderer(format);
+        }
+    }
+
+    /**
+     * <p>Returns the fields of the given pattern that SimpleDateFormat (used by the former versions) renders differently,
+     * as a readable list, or null if there's none :</p>
+     * <ul>
+     *     <li><code>S</code> is the fraction of second, not the number of ms (they are the same with exactly <code>SSS</code>)</li>
+     *     <li><code>u</code> is the year, not the day number of the week</li>
+     *     <li><code>F</code> is the aligned day of week in month, not the day of week in month</li>
+     * </ul>
+     */
+    static String simpleDateFormatDifferences(String pattern)
+    {
+        StringBuilder differences = new StringBuilder();
+        boolean quoted = false;
+        for ( int i = 0; i < pattern.length(); i++ )
+        {
+            char c = pattern.charAt(i);
+            if ( c == '\'' )
+            {
+                quoted = !quoted;
+                continue;
+            }
+            if ( quoted )
+            {
+                continue;
+            }
+
+            int count = 1;
+            while ( i + 1 < pattern.length() && pattern.charAt(i + 1) == c )
+            {
+                count++;
+                i++;
+            }
+
+            String difference = null;
+            if ( c == 'S' && count != 3 )
+            {
+                difference = "S is the fraction of second (not the milliseconds)";
+            }
+            else if ( c == 'u' )
+            {
+                difference = "u is the year (not the day number of the week)";
+            }
+            else if ( c == 'F' )
+            {
+                difference = "F is the aligned day of week in month";
+            }
+
+            if ( difference != null && differences.indexOf(difference) < 0 )
+            {
+                differences.append(differences.length() > 0 ? ", " : "").append(difference);
+            }
+        }
+        return differences.length() > 0 ? differences.toString() : null;
+    }
+
+// ----------------------------------->
+
+    /**
+     * Renders the number of ms since epoch, followed by a number of zeros
+     */
+    private static final class EpochRenderer extends LogFmtTimeRenderer
+    {
+        private final int zeros;
+
+        EpochRenderer(int zeros)
+        {
+            this.zeros = zeros;
+        }
+
+        @Override
+        void render(LogFmtBuffer buffer, long timestamp)
+        {
+            buffer.appendLong(timestamp);
+            if ( zeros > 0 )
+            {
+                buffer.appendDigits(0, zeros);
+            }
+        }
+    }
+
+    /**
+     * <p>Renders a DateTimeFormatter pattern.</p>
+     * <p>If the pattern contains a single fraction of second field (S), it is split around it :
+     * the head and the tail are cached (escaped) per second and only the fraction digits are rendered for each event.
+     * Patterns with other sub-second fields (n, N, A) are formatted for each event.</p>
+     */
+    private static final class PatternRenderer extends LogFmtTimeRenderer
+    {
+        private static final int[] POWERS_OF_TEN = {1, 10, 100};
+
+        private final ZoneId zone = ZoneId.systemDefault();
+
+        private final DateTimeFormatter head;
+
+        private final DateTimeFormatter tail;
+
+        /**
+         * Number of fraction digits between head and tail, -1 if the pattern cannot be cached
+         */
+        private final int fractionDigits;
+
+        /**
+         * Rendering of the last second
+         */
+        private volatile CachedSecond cache;
+
+        PatternRenderer(String pattern)
+        {
+            int fractionStart = -1;
+            int fractionEnd = -1;
+            boolean cacheable = true;
+
+            boolean quoted = false;
+            for ( int i = 0; i < pattern.length() && cacheable; i++ )
+            {
+                char c = pattern.charAt(i);
+                if ( c == '\'' )
+                {
+                    quoted = !quoted;
+                }
+                else if ( !quoted && (c == 'n' || c == 'N' || c == 'A') )
+                {
+                    cacheable = false;
+                }
+                else if ( !quoted && c == 'S' )
+                {
+                    if ( fractionStart >= 0 && fractionEnd < i )
+                    {
+                        // more than one fraction field
+                        cacheable = false;
+                    }
+                    else if ( fractionStart < 0 )
+                    {
+                        fractionStart = i;
+                    }
+                    fractionEnd = i + 1;
+                }
+            }
+
+            if ( !cacheable )
+            {
+                this.head = DateTimeFormatter.ofPattern(pattern);
+                this.tail = null;
+                this.fractionDigits = -1;
+            }
+            else if ( fractionStart < 0 )
+            {
+                this.head = DateTimeFormatter.ofPattern(pattern);
+                this.tail = null;
+                this.fractionDigits = 0;
+            }
+            else
+            {
+                this.head = DateTimeFormatter.ofPattern(pattern.substring(0, fractionStart));
+                this.tail = DateTimeFormatter.ofPattern(pattern.substring(fractionEnd));
+                this.fractionDigits = fractionEnd - fractionStart;
+            }
+
+            // fails now if the pattern cannot format a date
+            render(new LogFmtBuffer(), System.currentTimeMillis());
+        }
+
+        @Override
+        void render(LogFmtBuffer buffer, long timestamp)
+        {
+            if ( fractionDigits < 0 )
+            {
+                buffer.appendValue(head.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(timestamp), zone)));
+                return;
+            }
+
+            long second = Math.floorDiv(timestamp, 1000L);
+            CachedSecond cached = cache;
+            if ( cached == null || cached.second != second )
+            {
+                cache = cached = cacheSecond(second);
+            }
+
+            buffer.append(cached.head);
+            if ( fractionDigits > 0 )
+            {
+                int millis = (int) Math.floorMod(timestamp, 1000L);
+                if ( fractionDigits <= 3 )
+                {
+                    buffer.appendDigits(millis / POWERS_OF_TEN[ 3 - fractionDigits ], fractionDigits);
+                }
+                else
+                {
+                    buffer.appendDigits(millis, 3).appendDigits(0, fractionDigits - 3);
+                }
+            }
+            buffer.append(cached.tail);
+            if ( cached.quoted )
+            {
+                buffer.countQuotedValues(1);
+            }
+        }
+
+        private CachedSecond cacheSecond(long second)
+        {
+            ZonedDateTime dateTime = ZonedDateTime.ofInstant(Instant.ofEpochSecond(second), zone);
+            String formattedHead = head.format(dateTime);
+            String formattedTail = tail != null ? tail.format(dateTime) : "";
+
+            // the fraction digits never need quotes, so the head and tail decide for the whole value
+            boolean quoted = LogFmtBuffer.needsQuoting(formattedHead) || LogFmtBuffer.needsQuoting(formattedTail);
+            if ( quoted )
+            {
+                formattedHead = "\"" + LogFmtLayout.escapeValue(formattedHead);
+                formattedTail = LogFmtLayout.escapeValue(formattedTail) + "\"";
+            }
+
+            return new CachedSecond(second, formattedHead, formattedTail, quoted);
+        }
+    }
+
+    private static final class CachedSecond
+    {
+        final long second;
+        final String head;
+        final String tail;
+        final boolean quoted;
+
+        CachedSecond(long second, String head, String tail, boolean quoted)
+        {
+            this.second = second;
+            this.head = head;
+            this.tail = tail;
+            this.quoted = quoted;
+        }
+    }
+}
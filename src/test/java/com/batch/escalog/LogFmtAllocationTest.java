@@ -0,0 +1,158 @@
+package com.batch.escalog;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.OutputStreamAppender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * <p>Guards the number of bytes allocated per logged event, for representative configurations.</p>
+ * <p>Each scenario is warmed up (so that it is compiled), then the bytes allocated by the current thread are averaged over many runs
+ * and compared with a budget. The budgets leave some room above the measured values, but a change that adds garbage
+ * on the logging path (a copy of the line, boxing, an intermediate String...) fails them.</p>
+ */
+public class LogFmtAllocationTest
+{
+    private static final int WARMUP_RUNS = 20_000;
+
+    private static final int MEASURED_RUNS = 10_000;
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+
+    private LoggerContext context;
+
+    private Logger logger;
+
+    private LogFmt logFmt;
+
+// ----------------------------------->
+
+    @Before
+    public void setUp()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue("thread allocated bytes are not supported",
+            bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported());
+        threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        context = new LoggerContext();
+
+        LogFmtLayout layout = new LogFmtLayout();
+        layout.setContext(context);
+        layout.setPackageSource("loggerName");
+
+        LogFmtEncoder encoder = new LogFmtEncoder();
+        encoder.setContext(context);
+        encoder.setLayout(layout);
+        encoder.start();
+
+        OutputStreamAppender<ILoggingEvent> appender = new OutputStreamAppender<>();
+        appender.setContext(context);
+        appender.setEncoder(encoder);
+        appender.setOutputStream(new OutputStream()
+        {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        });
+        appender.start();
+
+        logger = context.getLogger("com.batch.escalog.Service");
+        logger.setAdditive(false);
+        logger.addAppender(appender);
+        logger.setLevel(Level.INFO);
+        logFmt = LogFmt.wrap(logger);
+    }
+
+    @After
+    public void tearDown()
+    {
+        if ( context != null )
+        {
+            context.stop();
+        }
+    }
+
+// ----------------------------------->
+
+    @Test
+    public void disabledLevelTest()
+    {
+        assertBudget("atDebug() when disabled", 0, () -> logFmt.atDebug().and("user", "john").and("count", 42).log("Request processed"));
+        assertBudget("isDebugEnabled guard", 0, () ->
+        {
+            if ( logFmt.isDebugEnabled() )
+            {
+                logFmt.with("user", "john").debug("Request processed");
+            }
+        });
+    }
+
+    @Test
+    public void encoderTest()
+    {
+        LogFmtLayout layout = new LogFmtLayout();
+        layout.setContext(context);
+        layout.setPackageSource("loggerName");
+        LogFmtEncoder encoder = new LogFmtEncoder();
+        encoder.setContext(context);
+        encoder.setLayout(layout);
+        encoder.start();
+
+        Map<String, String> mdc = new HashMap<>();
+        mdc.put("request_id", "4bf92f3577b34da6");
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "Request processed", null, null);
+        event.setMarker(LogFmtMarker.with("user", "john").and("count", 42L).and("ratio", 0.5).and("path", "/api/users"));
+        event.setMDCPropertyMap(mdc);
+        event.setThreadName("http-worker-12");
+
+        // the returned array (~200 bytes) only
+        assertBudget("LogFmtEncoder.encode", 320, () -> encoder.encode(event));
+
+        // the String
+        assertBudget("LogFmtLayout.doLayout", 384, () -> layout.doLayout(event));
+    }
+
+    @Test
+    public void loggerTest()
+    {
+        // the marker, the logging event and the encoded line
+        assertBudget("LogFmt.with(...).info(...)", 640, () -> logFmt.with("user", "john").and("count", 42).and("ratio", 0.5).info("Request processed"));
+        assertBudget("atInfo().and(...).log(...)", 640, () -> logFmt.atInfo().and("user", "john").and("count", 42).and("ratio", 0.5).log("Request processed"));
+    }
+
+// ----------------------------------->
+
+    private void assertBudget(String scenario, long budget, Runnable run)
+    {
+        for ( int i = 0; i < WARMUP_RUNS; i++ )
+        {
+            run.run();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long start = threadMXBean.getThreadAllocatedBytes(threadId);
+        for ( int i = 0; i < MEASURED_RUNS; i++ )
+        {
+            run.run();
+        }
+        long perRun = (threadMXBean.getThreadAllocatedBytes(threadId) - start) / MEASURED_RUNS;
+        assertTrue(scenario + " allocates " + perRun + " bytes per event, over its budget of " + budget, perRun <= budget);
+    }
+}
@@ -0,0 +1,157 @@
+package com.batch.escalog;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests LogFmtAsyncAppender
+ */
+public class LogFmtAsyncAppenderTest
+{
+
+    private LoggerContext ctx;
+
+    private LogFmtAsyncAppender asyncAppender;
+
+    private CollectingAppender collectingAppender;
+
+    private LogFmt logger;
+
+
+    @Before
+    public void init()
+    {
+        ctx = new LoggerContext();
+
+        LogFmtLayout layout = new LogFmtLayout();
+        layout.setFields("msg, custom");
+
+        LogFmtEncoder encoder = new LogFmtEncoder();
+        encoder.setContext(ctx);
+        encoder.start();
+
+        collectingAppender = new CollectingAppender();
+        collectingAppender.encoder = encoder;
+        collectingAppender.setContext(ctx);
+        collectingAppender.start();
+
+        asyncAppender = new LogFmtAsyncAppender();
+        asyncAppender.setContext(ctx);
+        asyncAppender.setLayout(layout);
+        asyncAppender.setBufferSize(64);
+        asyncAppender.setBatchSize(16);
+        asyncAppender.addAppender(collectingAppender);
+
+        Logger basicLogger = ctx.getLogger(LogFmtAsyncAppenderTest.class);
+        basicLogger.addAppender(asyncAppender);
+        logger = LogFmt.from(basicLogger);
+    }
+
+    @After
+    public void tearDown()
+    {
+        ctx.stop();
+    }
+
+    @Test
+    public void concurrentProducersTest() throws InterruptedException
+    {
+        for ( String waitStrategy : new String[] { "blocking", "sleeping", "yielding", "busySpin" } )
+        {
+            asyncAppender.setWaitStrategy(waitStrategy);
+            asyncAppender.start();
+
+            int threadCount = 4;
+            int eventsPerThread = 5000;
+
+            List<Thread> threads = new ArrayList<>();
+            for ( int t = 0; t < threadCount; t++ )
+            {
+                int thread = t;
+                threads.add(new Thread(() ->
+                {
+                    for ( int i = 0; i < eventsPerThread; i++ )
+                    {
+                        logger.with("producer", thread).and("i", i).info("message");
+                    }
+                }));
+            }
+            threads.forEach(Thread::start);
+            for ( Thread thread : threads )
+            {
+                thread.join();
+            }
+
+            // stopping flushes the ring buffer, but also stops the attached appenders
+            asyncAppender.stop();
+            asyncAppender.addAppender(collectingAppender);
+            collectingAppender.start();
+
+            Set<String> lines = new HashSet<>(collectingAppender.lines);
+            collectingAppender.lines.clear();
+
+            assertEquals(waitStrategy, threadCount * eventsPerThread, lines.size());
+            for ( int t = 0; t < threadCount; t++ )
+            {
+                assertTrue(lines.contains("msg=message producer=" + t + " i=" + (eventsPerThread - 1) + "\n"));
+            }
+        }
+    }
+
+    @Test
+    public void dropPolicyTest()
+    {
+        asyncAppender.setOverflowPolicy("drop");
+        collectingAppender.blocked = true;
+        asyncAppender.start();
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            logger.with("i", i).info("message");
+        }
+
+        assertTrue(asyncAppender.getDroppedCount() > 0);
+        collectingAppender.blocked = false;
+        asyncAppender.stop();
+        assertEquals(1000, collectingAppender.lines.size() + asyncAppender.getDroppedCount());
+    }
+
+    /**
+     * Appender that keeps the encoded lines
+     */
+    private static class CollectingAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
+    {
+        LogFmtEncoder encoder;
+
+        volatile boolean blocked;
+
+        final Queue<String> lines = new ConcurrentLinkedQueue<>();
+
+        @Override
+        protected void append(ILoggingEvent iLoggingEvent)
+        {
+            while ( blocked )
+            {
+                Thread.yield();
+            }
+            lines.add(new String(encoder.encode(iLoggingEvent), StandardCharsets.UTF_8));
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.batch.escalog;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.util.Duration;
+import ch.qos.logback.core.util.FileSize;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests LogFmtBatchingFileAppender
+ */
+public class LogFmtBatchingFileAppenderTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LoggerContext ctx;
+
+    private Logger logger;
+
+    private File file;
+
+    private LogFmtBatchingFileAppender appender;
+
+
+    @Before
+    public void init()
+    {
+        ctx = new LoggerContext();
+        logger = ctx.getLogger(LogFmtBatchingFileAppenderTest.class);
+        file = new File(folder.getRoot(), "logs/app.log");
+
+        LogFmtLayout layout = new LogFmtLayout();
+        layout.setContext(ctx);
+        layout.setFields("level, msg");
+
+        appender = new LogFmtBatchingFileAppender();
+        appender.setContext(ctx);
+        appender.setLayout(layout);
+        appender.setFile(file.getPath());
+    }
+
+    @After
+    public void tearDown()
+    {
+        appender.stop();
+        ctx.stop();
+    }
+
+    @Test
+    public void batchingTest() throws IOException
+    {
+        appender.setBufferSize(new FileSize(LogFmtBatchingFileAppender.CHUNK_SIZE + 100));
+        appender.setMaxLatency(null);
+        appender.start();
+
+        appender.doAppend(event(Level.INFO, "First"));
+        appender.doAppend(event(Level.WARN, "Second"));
+        assertEquals("", content());
+
+        // flushes the buffered lines too
+        appender.doAppend(event(Level.ERROR, "Third"));
+        assertEquals("level=info msg=First\nlevel=warning msg=Second\nlevel=error msg=Third\n", content());
+
+        // spans both chunks, then fills them
+        StringBuilder expected = new StringBuilder(content());
+        String large = new String(new char[ LogFmtBatchingFileAppender.CHUNK_SIZE ]).replace('\0', 'x');
+        appender.doAppend(event(Level.INFO, large));
+        expected.append("level=info msg=").append(large).append('\n');
+        assertEquals("level=info msg=First\nlevel=warning msg=Second\nlevel=error msg=Third\n", content());
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            appender.doAppend(event(Level.INFO, "Event" + i));
+            expected.append("level=info msg=Event").append(i).append('\n');
+        }
+        assertTrue(content().length() > LogFmtBatchingFileAppender.CHUNK_SIZE);
+
+        appender.stop();
+        assertEquals(expected.toString(), content());
+    }
+
+    @Test
+    public void maxLatencyTest() throws IOException, InterruptedException
+    {
+        appender.setMaxLatency(Duration.buildByMilliseconds(20));
+        appender.start();
+
+        appender.doAppend(event(Level.INFO, "Delayed"));
+        for ( int i = 0; i < 200 && content().isEmpty(); i++ )
+        {
+            Thread.sleep(10);
+        }
+        assertEquals("level=info msg=Delayed\n", content());
+    }
+
+    @Test
+    public void interruptedThreadTest() throws IOException, InterruptedException
+    {
+        appender.setMaxLatency(null);
+        appender.start();
+
+        // an interrupted thread writes without closing the channel, and stays interrupted
+        boolean[] stillInterrupted = new boolean[ 1 ];
+        Thread thread = new Thread(() ->
+        {
+            Thread.currentThread().interrupt();
+            appender.doAppend(event(Level.ERROR, "Interrupted"));
+            stillInterrupted[ 0 ] = Thread.currentThread().isInterrupted();
+        });
+        thread.start();
+        thread.join();
+        assertTrue(stillInterrupted[ 0 ]);
+
+        appender.doAppend(event(Level.ERROR, "Next"));
+        assertEquals("level=error msg=Interrupted\nlevel=error msg=Next\n", content());
+    }
+
+// ----------------------------------->
+
+    private LoggingEvent event(Level level, String message)
+    {
+        return new LoggingEvent(Logger.class.getName(), logger, level, message, null, null);
+    }
+
+    private String content() throws IOException
+    {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
@@ -1,21 +1,38 @@
 package com.batch.escalog;
 
 import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.IThrowableProxy;
 import ch.qos.logback.classic.spi.LoggerContextVO;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+import ch.qos.logback.core.CoreConstants;
 import org.junit.Test;
 import org.slf4j.Marker;
 
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Random;
 
 import static com.batch.escalog.LogFmtLayout.escapeValue;
 import static com.batch.escalog.LogFmtMarker.with;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Tests LogFmtLayout
@@ -35,6 +52,31 @@ public class LogFmtLayoutTest
         assertEquals("the \\\\ backslash \\\\", escapeValue("the \\ backslash \\").toString());
     }
 
+    @Test
+    public void appendValueTest()
+    {
+        assertEquals("value-without_spaces", appendValue("value-without_spaces"));
+        assertEquals("", appendValue(""));
+        assertEquals("\"the \\\"message\\\"\"", appendValue("the \"message\""));
+        assertEquals("\"\\\"quoted\\\"\"", appendValue("\"quoted\""));
+        assertEquals("\"line\\nline\\ttab\\\\\"", appendValue("line\nline\ttab\\"));
+        assertEquals("\"é\"", appendValue("é"));
+        assertEquals("\"emoji \uD83D\uDE00\"", appendValue("emoji \uD83D\uDE00"));
+
+        StringBuilder longValue = new StringBuilder();
+        for ( int i = 0; i < 1000; i++ )
+        {
+            longValue.append("abc");
+        }
+        assertEquals(longValue.toString(), appendValue(longValue.toString()));
+        assertEquals("\"" + longValue + " \"", appendValue(longValue + " "));
+    }
+
+    private static String appendValue(String value)
+    {
+        return new LogFmtBuffer(4, false).appendValue(value).toString();
+    }
+
     @Test
     public void logFmtLayoutTest()
     {
@@ -60,6 +102,118 @@ public class LogFmtLayoutTest
 
     }
 
+    @Test
+    public void markerGrowthTest()
+    {
+        LogFmtLayout logFmtLayout = new LogFmtLayout();
+        logFmtLayout.setFields("custom");
+
+        LogFmtMarker marker = new LogFmtMarker();
+        StringBuilder expected = new StringBuilder();
+        for ( int i = 0; i < 10; i++ )
+        {
+            marker.and("key" + i, i);
+            expected.append("key").append(i).append('=').append(i).append(i < 9 ? ' ' : '\n');
+        }
+
+        assertEquals(10, marker.size());
+        assertEquals(expected.toString(), logFmtLayout.doLayout(createLoggingEvent("thread0", Level.INFO, new Date(), marker, "", null)));
+    }
+
+    @Test
+    public void threadFieldTest()
+    {
+        LogFmtLayout logFmtLayout = new LogFmtLayout();
+        logFmtLayout.setFields("thread");
+
+        assertEquals("thread=\"pool [3] thread\"\n", logFmtLayout.doLayout(createLoggingEvent("pool [3] thread", Level.INFO, new Date(), null, "", null)));
+        assertEquals("thread=\"pool [3] thread\"\n", logFmtLayout.doLayout(createLoggingEvent("pool [3] thread", Level.INFO, new Date(), null, "", null)));
+
+        // renamed thread, or events of other threads
+        assertEquals("thread=worker-1\n", logFmtLayout.doLayout(createLoggingEvent("worker-1", Level.INFO, new Date(), null, "", null)));
+        assertEquals("thread=\"pool [3] thread\"\n", logFmtLayout.doLayout(createLoggingEvent("pool [3] thread", Level.INFO, new Date(), null, "", null)));
+        assertEquals("thread=null\n", logFmtLayout.doLayout(createLoggingEvent(null, Level.INFO, new Date(), null, "", null)));
+
+        // the cached field is encoded for the buffer
+        assertEquals("thread=\"thréad\"\n", logFmtLayout.doLayout(createLoggingEvent("thréad", Level.INFO, new Date(), null, "", null)));
+        LogFmtBuffer latin1 = new LogFmtBuffer(64, true);
+        logFmtLayout.render(latin1, createLoggingEvent("thréad", Level.INFO, new Date(), null, "", null));
+        assertEquals("thread=\"thréad\"\n", latin1.toString());
+    }
+
+    @Test
+    public void bufferPoolTest()
+    {
+        LogFmtBufferPool pool = new LogFmtBufferPool(false);
+        byte[] line = new byte[ 700 ];
+
+        // settles on the size of the recent lines, without reallocating
+        LogFmtBuffer buffer = pool.acquire();
+        for ( int i = 0; i < 20; i++ )
+        {
+            buffer.append(line);
+            pool.release(buffer);
+            assertSame(buffer, pool.acquire());
+        }
+        byte[] array = buffer.array();
+        for ( int i = 0; i < 100; i++ )
+        {
+            buffer.append(line, 0, 300 + i * 4);
+            pool.release(buffer);
+            pool.acquire();
+        }
+        assertSame(array, buffer.array());
+
+        // a huge line is not retained
+        buffer.append(new byte[ 1024 * 1024 ]);
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire());
+        assertEquals(0, buffer.length());
+        assertTrue(buffer.capacity() <= LogFmtBufferPool.MAX_RETAINED_CAPACITY);
+
+        // nor a big one, once the following lines are small again
+        for ( int i = 0; i < 50; i++ )
+        {
+            buffer.append(line);
+            pool.release(buffer);
+            pool.acquire();
+        }
+        assertTrue(buffer.capacity() <= 4 * 2048);
+
+        // new buffers start at the size of the recent lines
+        assertEquals(2048, pool.acquire().capacity());
+    }
+
+    @Test
+    public void primitiveValuesTest()
+    {
+        LogFmtLayout logFmtLayout = new LogFmtLayout();
+        logFmtLayout.setFields("custom");
+
+        LogFmtMarker marker = with("long", Long.MIN_VALUE).and("int", -42).and("double", 0.1).and("float", 0.1f)
+            .and("bool", true).and("char", 'c').and("space", ' ').and("nan", Double.NaN).and("big", 1e21);
+
+        assertEquals(
+            "long=-9223372036854775808 int=-42 double=0.1 float=0.1 bool=true char=c space=\" \" nan=NaN big=1.0E21\n",
+            logFmtLayout.doLayout(createLoggingEvent("thread0", Level.INFO, new Date(), marker, "", null))
+        );
+        assertEquals(Long.MIN_VALUE, marker.valueAt(0));
+        assertEquals(0.1, marker.valueAt(2));
+        assertEquals('c', marker.valueAt(5));
+
+        Random random = new Random(42);
+        for ( int i = 0; i < 10000; i++ )
+        {
+            double value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(9) - 2);
+            if ( i % 2 == 0 )
+            {
+                value = Math.round(value * 1000) / 1000.0;
+            }
+            double rendered = Double.parseDouble(new LogFmtBuffer().appendDouble(value).toString());
+            assertEquals(value, rendered, 0);
+        }
+    }
+
     @Test
     public void fieldsConfigTest()
     {
@@ -82,6 +236,366 @@ public class LogFmtLayoutTest
         );
     }
 
+    @Test
+    public void mdcProjectionTest()
+    {
+        Map<String, String> mdc = new LinkedHashMap<>();
+        mdc.put("span_id", "b7ad6b71");
+        mdc.put("trace_id", "4bf92f35");
+        mdc.put("user", "john");
+        mdc.put("sampled", "1");
+        mdc.put("level", "debug");
+        ILoggingEvent loggingEvent = createLoggingEvent("thread0", Level.INFO, new Date(), null, "", mdc);
+
+        LogFmtLayout logFmtLayout = new LogFmtLayout();
+        logFmtLayout.setFields("mdc");
+        assertEquals("span_id=b7ad6b71 trace_id=4bf92f35 user=john sampled=1\n", logFmtLayout.doLayout(loggingEvent));
+
+        // only the included keys, in their order
+        logFmtLayout.setMdcInclude("user, trace_id, missing, level");
+        assertEquals("user=john trace_id=4bf92f35\n", logFmtLayout.doLayout(loggingEvent));
+
+        logFmtLayout.setMdcOrder("trace_id");
+        assertEquals("trace_id=4bf92f35 user=john\n", logFmtLayout.doLayout(loggingEvent));
+
+        logFmtLayout.setReservedKeyPolicy("rename");
+        logFmtLayout.setMdcExclude("user");
+        assertEquals("trace_id=4bf92f35 _level=debug\n", logFmtLayout.doLayout(loggingEvent));
+
+        // ordered keys first, then the others except the excluded ones
+        logFmtLayout = new LogFmtLayout();
+        logFmtLayout.setFields("mdc");
+        logFmtLayout.setMdcOrder("user, trace_id");
+        logFmtLayout.setMdcExclude("sampled");
+        assertEquals("user=john trace_id=4bf92f35 span_id=b7ad6b71\n", logFmtLayout.doLayout(loggingEvent));
+    }
+
+    @Test
+    public void sizeLimitsTest()
+    {
+        LogFmtLayout logFmtLayout = new LogFmtLayout();
+        logFmtLayout.setFields("level, msg, mdc, custom");
+        logFmtLayout.setMaxValueLength(8);
+        logFmtLayout.setMaxValueLengths("msg=5, body=0, invalid");
+
+        Map<String, String> mdc = new LinkedHashMap<>();
+        mdc.put("trace_id", "4bf92f3577b34da6");
+        ILoggingEvent loggingEvent = createLoggingEvent("thread0", Level.INFO, new Date(),
+            with("body", "{\"user\":\"john\"}").and("count", 123456789012L).and("emoji", "1234567😀"), "Request processed", mdc);
+
+        // cut values are quoted, primitives are never cut
+        assertEquals("level=info msg=\"Reque…[+12]\" trace_id=\"4bf92f35…[+8]\" body=\"…[+15]\" count=123456789012 emoji=\"1234567…[+2]\"\n",
+            logFmtLayout.doLayout(loggingEvent));
+
+        logFmtLayout.setMaxValueLength(LogFmtLayout.UNLIMITED);
+        logFmtLayout.setMaxValueLengths("");
+        logFmtLayout.setMaxCustomFields(2);
+        assertEquals("level=info msg=\"Request processed\" trace_id=4bf92f3577b34da6 body=\"{\\\"user\\\":\\\"john\\\"}\" truncated=true\n",
+            logFmtLayout.doLayout(loggingEvent));
+
+        // the value that reaches the limit is cut, the next fields are dropped
+        logFmtLayout.setMaxCustomFields(LogFmtLayout.UNLIMITED);
+        logFmtLayout.setMaxLineLength(60);
+        String line = logFmtLayout.doLayout(loggingEvent);
+        assertEquals("level=info msg=\"Request pro…[+6]\" truncated=true\n", line);
+        assertTrue(line.getBytes(StandardCharsets.UTF_8).length <= 60);
+
+        // the line feed stays within the limit
+        logFmtLayout.setMaxLineLength(0);
+        assertEquals("level=info truncated=true\n", logFmtLayout.doLayout(loggingEvent));
+
+        // ISO-8859-1 cannot encode the ellipsis
+        logFmtLayout.setMaxLineLength(LogFmtLayout.UNLIMITED);
+        logFmtLayout.setFields("msg");
+        logFmtLayout.setMaxValueLength(7);
+        LogFmtBuffer latin1 = new LogFmtBuffer(64, true);
+        logFmtLayout.render(latin1, loggingEvent);
+        assertEquals("msg=\"Request...[+10]\"\n", latin1.toString());
+    }
+
+    @Test
+    public void renderPlanTest()
+    {
+        LogFmtLayout logFmtLayout = new LogFmtLayout();
+        logFmtLayout.setPrefix("[prefix]");
+        logFmtLayout.setAppName("my app");
+        logFmtLayout.setFields("level");
+        logFmtLayout.start();
+
+        Date date = new Date();
+        assertEquals("[prefix] app=\"my app\" level=warning\n", logFmtLayout.doLayout(createLoggingEvent("thread0", Level.WARN, date, null, "", null)));
+        assertEquals("[prefix] app=\"my app\" level=trace\n", logFmtLayout.doLayout(createLoggingEvent("thread0", Level.TRACE, date, null, "", null)));
+
+        // the plan is compiled again when the configuration changes
+        logFmtLayout.setPrefix(null);
+        logFmtLayout.setAppName("app");
+        logFmtLayout.setFields("msg, level");
+        assertEquals("app=app msg=hello level=error\n", logFmtLayout.doLayout(createLoggingEvent("thread0", Level.ERROR, date, null, "hello", null)));
+    }
+
+    @Test
+    public void reservedKeyTest()
+    {
+        LogFmtLayout logFmtLayout = new LogFmtLayout();
+        logFmtLayout.setFields("level, mdc, custom");
+
+        Map<String, String> mdc = new HashMap<>();
+        mdc.put("msg", "from mdc");
+        Date date = new Date();
+
+        assertEquals(LogFmtLayout.NativeKey.MESSAGE, LogFmtLayout.NativeKey.forKey("msg"));
+        assertEquals(LogFmtLayout.NativeKey.PACKAGE, LogFmtLayout.NativeKey.forKey("package"));
+        assertEquals(null, LogFmtLayout.NativeKey.forKey("mdg"));
+        assertEquals(null, LogFmtLayout.NativeKey.forKey("levels"));
+        assertEquals(null, LogFmtLayout.NativeKey.forKey("é"));
+
+        // dropped by default
+        assertEquals("level=info key=value\n", logFmtLayout.doLayout(createLoggingEvent("thread0", Level.INFO, date, with("level", "debug").and("key", "value"), "", mdc)));
+
+        logFmtLayout.setReservedKeyPolicy("rename");
+        assertEquals("level=info _msg=\"from mdc\" _level=debug key=value\n", logFmtLayout.doLayout(createLoggingEvent("thread0", Level.INFO, date, with("level", "debug").and("key", "value"), "", mdc)));
+
+        logFmtLayout.setReservedKeyPrefix("user.");
+        assertEquals("level=info user.msg=\"from mdc\" user.level=3\n", logFmtLayout.doLayout(createLoggingEvent("thread0", Level.INFO, date, with("level", 3), "", mdc)));
+
+        logFmtLayout.setReservedKeyPolicy("keep");
+        assertEquals("level=info msg=\"from mdc\" level=debug\n", logFmtLayout.doLayout(createLoggingEvent("thread0", Level.INFO, date, with("level", "debug"), "", mdc)));
+
+        // invalid policies are ignored
+        logFmtLayout.setReservedKeyPolicy("invalid");
+        assertEquals("level=info msg=\"from mdc\" level=debug\n", logFmtLayout.doLayout(createLoggingEvent("thread0", Level.INFO, date, with("level", "debug"), "", mdc)));
+
+        // error_id is only reserved when errors are fingerprinted
+        logFmtLayout = new LogFmtLayout();
+        logFmtLayout.setFields("level, custom");
+        assertEquals("level=info error_id=42\n", logFmtLayout.doLayout(createLoggingEvent("thread0", Level.INFO, date, with("error_id", 42), "", null)));
+        logFmtLayout.setErrorRepeatInterval(1000);
+        assertEquals("level=info\n", logFmtLayout.doLayout(createLoggingEvent("thread0", Level.INFO, date, with("error_id", 42), "", null)));
+
+        // and truncated when fields can be dropped
+        assertEquals("level=info truncated=no\n", logFmtLayout.doLayout(createLoggingEvent("thread0", Level.INFO, date, with("truncated", "no"), "", null)));
+        logFmtLayout.setMaxLineLength(1000);
+        assertEquals("level=info\n", logFmtLayout.doLayout(createLoggingEvent("thread0", Level.INFO, date, with("truncated", "no"), "", null)));
+    }
+
+    @Test
+    public void throwableRendererTest()
+    {
+        Exception cause = new IllegalStateException("the \"cause\"");
+        cause.setStackTrace(frames("com.foo.Dao", "org.db.Driver", "org.db.Driver", "com.foo.Service", "com.foo.Main"));
+        Exception suppressed = new RuntimeException((String) null);
+        suppressed.setStackTrace(frames("com.foo.Closer"));
+        Exception exception = new Exception("failure", cause);
+        exception.setStackTrace(frames("com.foo.Service", "com.foo.Main"));
+        exception.addSuppressed(suppressed);
+        ThrowableProxy proxy = new ThrowableProxy(exception);
+
+        // same output as logback, streamed
+        assertEquals("\"" + escapeValue(ThrowableProxyUtil.asString(proxy)) + "\"", renderThrowable(new LogFmtThrowableRenderer(LogFmtThrowableRenderer.UNLIMITED, LogFmtThrowableRenderer.UNLIMITED, new String[ 0 ]), proxy));
+
+        String nl = escapeValue(CoreConstants.LINE_SEPARATOR).toString();
+        assertEquals(
+            "\"java.lang.Exception: failure" + nl +
+            "\\tat com.foo.Service.run(Service.java:42)" + nl +
+            "\\t... 1 frames truncated" + nl +
+            "\\t... 1 suppressed omitted" + nl +
+            "\\t... 1 causes omitted" + nl + "\"",
+            renderThrowable(new LogFmtThrowableRenderer(1, 0, new String[ 0 ]), proxy)
+        );
+        assertEquals(
+            "\"java.lang.Exception: failure" + nl +
+            "\\tat com.foo.Service.run(Service.java:42)" + nl +
+            "\\tat com.foo.Main.run(Main.java:42)" + nl +
+            "\\tSuppressed: java.lang.RuntimeException: null" + nl +
+            "\\t\\tat com.foo.Closer.run(Closer.java:42)" + nl +
+            "Caused by: java.lang.IllegalStateException: the \\\"cause\\\"" + nl +
+            "\\tat com.foo.Dao.run(Dao.java:42)" + nl +
+            "\\t... 2 frames excluded" + nl +
+            "\\t... 2 common frames omitted" + nl + "\"",
+            renderThrowable(new LogFmtThrowableRenderer(LogFmtThrowableRenderer.UNLIMITED, 1, new String[] { "org.db" }), proxy)
+        );
+    }
+
+    @Test
+    public void errorFingerprintTest()
+    {
+        LogFmtLayout logFmtLayout = new LogFmtLayout();
+        logFmtLayout.setFields("error");
+        logFmtLayout.setErrorRepeatInterval(1000);
+
+        Logger logger = new LoggerContext().getLogger("loggerName");
+        Exception exception = new IllegalStateException("failure");
+        exception.setStackTrace(frames("com.foo.Service", "com.foo.Main"));
+        Exception other = new IllegalStateException("failure");
+        other.setStackTrace(frames("com.foo.Dao", "com.foo.Main"));
+
+        String errorId = Long.toHexString(LogFmtErrorFingerprints.fingerprint(new ThrowableProxy(exception)));
+        while ( errorId.length() < 16 )
+        {
+            errorId = "0" + errorId;
+        }
+
+        String full = logFmtLayout.doLayout(errorEvent(logger, exception, 10_000));
+        assertEquals("error_id=" + errorId + " error=\"java.lang.IllegalStateException: failure", full.substring(0, full.indexOf("\\n")));
+        assertEquals(true, full.contains("com.foo.Main.run"));
+
+        // same stack, even with another message : only the first line until the interval is elapsed
+        Exception again = new IllegalStateException("failure again");
+        again.setStackTrace(exception.getStackTrace());
+        assertEquals("error_id=" + errorId + " error=\"java.lang.IllegalStateException: failure again\"\n", logFmtLayout.doLayout(errorEvent(logger, again, 10_500)));
+        assertEquals(full, logFmtLayout.doLayout(errorEvent(logger, exception, 11_000)));
+
+        // another stack
+        assertEquals(true, logFmtLayout.doLayout(errorEvent(logger, other, 11_000)).contains("com.foo.Dao.run"));
+        assertEquals(false, logFmtLayout.doLayout(errorEvent(logger, other, 11_001)).contains("com.foo.Dao.run"));
+    }
+
+    private static ILoggingEvent errorEvent(Logger logger, Throwable throwable, long timestamp)
+    {
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.ERROR, "error", throwable, null);
+        event.setTimeStamp(timestamp);
+        return event;
+    }
+
+    private static StackTraceElement[] frames(String... classNames)
+    {
+        StackTraceElement[] frames = new StackTraceElement[ classNames.length ];
+        for ( int i = 0; i < classNames.length; i++ )
+        {
+            String file = classNames[ i ].substring(classNames[ i ].lastIndexOf('.') + 1) + ".java";
+            frames[ i ] = new StackTraceElement(classNames[ i ], "run", file, 42);
+        }
+        return frames;
+    }
+
+    private static String renderThrowable(LogFmtThrowableRenderer renderer, ThrowableProxy proxy)
+    {
+        LogFmtBuffer buffer = new LogFmtBuffer();
+        renderer.render(buffer, proxy);
+        return buffer.toString();
+    }
+
+    @Test
+    public void metricsTest() throws Exception
+    {
+        LoggerContext context = new LoggerContext();
+        LogFmtLayout logFmtLayout = new LogFmtLayout();
+        logFmtLayout.setContext(context);
+        logFmtLayout.setFields("time, level, msg, error");
+        logFmtLayout.setAppName("metrics test");
+        logFmtLayout.setMetrics(true);
+        logFmtLayout.setMetricsName("metricsTest");
+        logFmtLayout.start();
+
+        Logger logger = context.getLogger("loggerName");
+        Date date = new Date();
+        String info = logFmtLayout.doLayout(createLoggingEvent("thread0", Level.INFO, date, null, "a message", null));
+        String warn = logFmtLayout.doLayout(createLoggingEvent("thread0", Level.WARN, date, null, "message", null));
+        String error = logFmtLayout.doLayout(errorEvent(logger, new IllegalStateException("failure"), date.getTime()));
+
+        LogFmtLayoutMetrics metrics = logFmtLayout.getMetrics();
+        assertEquals(3, metrics.getEventsRendered());
+        assertEquals(info.length() + warn.length() + error.getBytes(StandardCharsets.UTF_8).length, metrics.getBytesRendered());
+        assertEquals(1, metrics.getInfoEvents());
+        assertEquals(1, metrics.getWarnEvents());
+        assertEquals(1, metrics.getErrorEvents());
+        // app name and time of each line, "a message" and the error
+        assertEquals(8, metrics.getQuotedValues());
+        assertEquals(1, metrics.getThrowablesRendered());
+        assertEquals(3, Arrays.stream(metrics.getLatencyHistogram()).sum());
+        assertTrue(metrics.getLatencyP99Nanos() >= metrics.getLatencyP50Nanos() && metrics.getLatencyP50Nanos() > 0);
+
+        // exposed with JMX
+        ObjectName objectName = new ObjectName("com.batch.escalog:type=LogFmtLayout,name=\"metricsTest\"");
+        assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "EventsRendered"));
+
+        logFmtLayout.stop();
+        assertEquals(false, ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+    }
+
+    @Test
+    public void cachedFieldsMetricsTest()
+    {
+        LoggerContext context = new LoggerContext();
+        LogFmtLayout logFmtLayout = new LogFmtLayout();
+        logFmtLayout.setContext(context);
+        logFmtLayout.setFields("thread, package, module");
+        logFmtLayout.setPackageSource("loggerName");
+        logFmtLayout.setMetrics(true);
+        logFmtLayout.setMetricsName("cachedFieldsMetricsTest");
+        logFmtLayout.start();
+
+        // the second event is rendered from the cached fields
+        Logger logger = context.getLogger("com.foo bar.My Service");
+        for ( int i = 0; i < 2; i++ )
+        {
+            LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "message", null, null);
+            event.setThreadName("http worker 1");
+            assertEquals("thread=\"http worker 1\" package=\"com.foo bar\" module=\"My Service\"\n", logFmtLayout.doLayout(event));
+        }
+        assertEquals(6, logFmtLayout.getMetrics().getQuotedValues());
+        logFmtLayout.stop();
+    }
+
+    @Test
+    public void timeFormatTest()
+    {
+        LogFmtLayout logFmtLayout = new LogFmtLayout();
+        logFmtLayout.setFields("time");
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2017, Calendar.NOVEMBER, 30, 15, 10, 25);
+        calendar.set(Calendar.MILLISECOND, 42);
+        Date date = calendar.getTime();
+        String offset = DateTimeFormatter.ofPattern("XXX").format(date.toInstant().atZone(ZoneId.systemDefault()));
+
+        logFmtLayout.setTimeFormat("RFC3339_MILLIS");
+        assertEquals("time=\"2017-11-30T15:10:25.042" + offset + "\"\n", logFmtLayout.doLayout(createLoggingEvent("thread0", Level.INFO, date, null, "", null)));
+
+        logFmtLayout.setTimeFormat("RFC3339_MICROS");
+        assertEquals("time=\"2017-11-30T15:10:25.042000" + offset + "\"\n", logFmtLayout.doLayout(createLoggingEvent("thread0", Level.INFO, date, null, "", null)));
+
+        assertEquals(null, LogFmtTimeRenderer.simpleDateFormatDifferences("yyyy-MM-dd'T'HH:mm:ss.SSSXXX"));
+        assertEquals(null, LogFmtTimeRenderer.simpleDateFormatDifferences("yyyy'Su'"));
+        assertEquals("u is the year (not the day number of the week), S is the fraction of second (not the milliseconds)",
+            LogFmtTimeRenderer.simpleDateFormatDifferences("uuuu.SS.S"));
+
+        logFmtLayout.setTimeFormat("yyyyMMdd.SS");
+        assertEquals("time=20171130.04\n", logFmtLayout.doLayout(createLoggingEvent("thread0", Level.INFO, date, null, "", null)));
+
+        logFmtLayout.setTimeFormat("EPOCH_MILLIS");
+        assertEquals("time=" + date.getTime() + "\n", logFmtLayout.doLayout(createLoggingEvent("thread0", Level.INFO, date, null, "", null)));
+
+        logFmtLayout.setTimeFormat("EPOCH_NANOS");
+        assertEquals("time=" + date.getTime() + "000000\n", logFmtLayout.doLayout(createLoggingEvent("thread0", Level.INFO, date, null, "", null)));
+
+        // invalid formats are ignored
+        logFmtLayout.setTimeFormat("invalid format ppp");
+        assertEquals("time=" + date.getTime() + "000000\n", logFmtLayout.doLayout(createLoggingEvent("thread0", Level.INFO, date, null, "", null)));
+    }
+
+    @Test
+    public void encoderTest()
+    {
+        LogFmtEncoder encoder = new LogFmtEncoder();
+        encoder.start();
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2017, Calendar.NOVEMBER, 30, 15, 10, 25);
+        ILoggingEvent loggingEvent = createLoggingEvent("thread0", Level.INFO, calendar.getTime(),
+            with("key1", "valué").and("key2", "\uD83D\uDE00 emoji"), "message with \"double quotes\"", null);
+
+        assertEquals(
+            "time=\"2017-11-30T15:10:25\" level=info thread=thread0 msg=\"message with \\\"double quotes\\\"\" key1=\"valué\" key2=\"\uD83D\uDE00 emoji\"\n",
+            new String(encoder.encode(loggingEvent), StandardCharsets.UTF_8)
+        );
+        assertArrayEquals(encoder.getLayout().doLayout(loggingEvent).getBytes(StandardCharsets.UTF_8), encoder.encode(loggingEvent));
+
+        encoder.setCharset(StandardCharsets.ISO_8859_1);
+        encoder.start();
+        assertArrayEquals(encoder.getLayout().doLayout(loggingEvent).getBytes(StandardCharsets.ISO_8859_1), encoder.encode(loggingEvent));
+    }
+
     ILoggingEvent createLoggingEvent(String threadName, Level logLevel, Date date, Marker marker, String msg, Map<String, String> mdc)
     {
         return new ILoggingEvent()
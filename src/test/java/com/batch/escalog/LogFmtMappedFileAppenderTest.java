@@ -0,0 +1,176 @@
+package com.batch.escalog;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.status.Status;
+import ch.qos.logback.core.util.Duration;
+import ch.qos.logback.core.util.FileSize;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests LogFmtMappedFileAppender
+ */
+public class LogFmtMappedFileAppenderTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LoggerContext ctx;
+
+    private Logger logger;
+
+    private String file;
+
+
+    @Before
+    public void init()
+    {
+        ctx = new LoggerContext();
+        logger = ctx.getLogger(LogFmtMappedFileAppenderTest.class);
+        file = new File(folder.getRoot(), "logs/app.log").getPath();
+    }
+
+    @After
+    public void tearDown()
+    {
+        ctx.stop();
+    }
+
+    @Test
+    public void sizeRollingTest() throws IOException
+    {
+        LogFmtMappedFileAppender appender = newAppender();
+        appender.setSegmentSize(new FileSize(256));
+        appender.start();
+
+        List<String> expected = new ArrayList<>();
+        for ( int i = 0; i < 50; i++ )
+        {
+            appender.doAppend(event("Event " + i, 1000));
+            expected.add("level=info msg=\"Event " + i + "\"");
+        }
+
+        // larger than a segment
+        String large = new String(new char[ 500 ]).replace('\0', 'x');
+        appender.doAppend(event(large, 1000));
+        expected.add("level=info msg=" + large);
+        appender.stop();
+
+        List<File> segments = segments();
+        assertTrue(segments.size() > 5);
+        List<String> lines = new ArrayList<>();
+        for ( File segment : segments )
+        {
+            assertTrue(segment.length() <= 256 || segment.length() == ("level=info msg=" + large + "\n").length());
+            lines.addAll(Files.readAllLines(segment.toPath(), StandardCharsets.UTF_8));
+        }
+        assertEquals(expected, lines);
+
+        // numbering continues after the existing segments
+        LogFmtMappedFileAppender restarted = newAppender();
+        restarted.start();
+        assertEquals(file + "." + segments.size(), restarted.getSegmentPath().toString());
+        restarted.doAppend(event("Restarted", 1000));
+        restarted.stop();
+        assertEquals(segments.size() + 1, segments().size());
+    }
+
+    @Test
+    public void timeRollingTest() throws IOException
+    {
+        LogFmtMappedFileAppender appender = newAppender();
+        appender.setRollInterval(Duration.buildBySeconds(60));
+        appender.start();
+
+        appender.doAppend(event("First", 1_000_000));
+        appender.doAppend(event("Second", 1_030_000));
+        appender.doAppend(event("Third", 1_060_000));
+        appender.stop();
+
+        // the age of a segment is the one of its first event
+        List<File> segments = segments();
+        assertEquals(2, segments.size());
+        assertEquals("level=info msg=First\nlevel=info msg=Second\n", new String(Files.readAllBytes(segments.get(0).toPath()), StandardCharsets.UTF_8));
+        assertEquals("level=info msg=Third\n", new String(Files.readAllBytes(segments.get(1).toPath()), StandardCharsets.UTF_8));
+        // the segments were unmapped before being truncated
+        for ( Status status : ctx.getStatusManager().getCopyOfStatusList() )
+        {
+            assertTrue(status.getMessage(), status.getLevel() < Status.WARN);
+        }
+    }
+
+    @Test
+    public void failedRollTest() throws IOException, InterruptedException
+    {
+        LogFmtMappedFileAppender appender = newAppender();
+        appender.setSegmentSize(new FileSize(32));
+        appender.start();
+        appender.doAppend(event("First", 1000));
+
+        // the next segment can't be opened
+        File blocked = new File(file + ".1");
+        assertTrue(blocked.mkdir());
+        appender.doAppend(event("Dropped while rolling", 1000));
+        appender.doAppend(event("Dropped before the retry", 1000));
+        assertTrue(appender.isStarted());
+        assertTrue(ctx.getStatusManager().getCopyOfStatusList().stream()
+            .anyMatch(status -> status.getLevel() == Status.ERROR && status.getMessage().startsWith("Failed to open the segment 1")));
+
+        // retried once the backoff delay is over
+        assertTrue(blocked.delete());
+        Thread.sleep(LogFmtMappedFileAppender.MIN_RETRY_DELAY + 50);
+        appender.doAppend(event("Retried", 1000));
+        appender.stop();
+
+        assertEquals("level=info msg=First\n", new String(Files.readAllBytes(segments().get(0).toPath()), StandardCharsets.UTF_8));
+        assertEquals("level=info msg=Retried\n", new String(Files.readAllBytes(segments().get(1).toPath()), StandardCharsets.UTF_8));
+    }
+
+// ----------------------------------->
+
+    private LogFmtMappedFileAppender newAppender()
+    {
+        LogFmtLayout layout = new LogFmtLayout();
+        layout.setContext(ctx);
+        layout.setFields("level, msg");
+
+        LogFmtMappedFileAppender appender = new LogFmtMappedFileAppender();
+        appender.setContext(ctx);
+        appender.setLayout(layout);
+        appender.setFile(file);
+        return appender;
+    }
+
+    private LoggingEvent event(String message, long timestamp)
+    {
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message, null, null);
+        event.setTimeStamp(timestamp);
+        return event;
+    }
+
+    private List<File> segments()
+    {
+        List<File> segments = new ArrayList<>();
+        for ( int i = 0; new File(file + "." + i).exists(); i++ )
+        {
+            segments.add(new File(file + "." + i));
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,123 @@
+package com.batch.escalog;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests LogFmtParser
+ */
+public class LogFmtParserTest
+{
+    private static final String[] VALUES = {
+        "value", "", "with spaces", "the \"message\"", "line\nline\ttab\\", "key=value", "é", "emoji 😀", "\\\"", "trailing\\"
+    };
+
+    @Test
+    public void parseTest()
+    {
+        LogFmtParser parser = new LogFmtParser().reset("a=1 b=\"x y\"  bare c=\"esc\\\"aped\\n\"\r\nd=2\n\ne=\"unterminated");
+
+        assertTrue(parser.nextLine());
+        assertTrue(parser.nextField());
+        assertTrue(parser.keyEquals("a"));
+        assertTrue(parser.valueEquals("1"));
+        assertFalse(parser.isQuoted());
+        assertTrue(parser.nextField());
+        assertEquals("b", parser.key());
+        assertEquals("x y", parser.value());
+        assertTrue(parser.isQuoted());
+        assertFalse(parser.isEscaped());
+        assertTrue(parser.nextField());
+        assertEquals("bare", parser.key());
+        assertFalse(parser.hasValue());
+        assertTrue(parser.nextField());
+        assertTrue(parser.isEscaped());
+        assertTrue(parser.valueEquals("esc\"aped\n"));
+        assertFalse(parser.nextField());
+
+        assertTrue(parser.nextLine());
+        assertTrue(parser.nextField());
+        assertEquals("d", parser.key());
+        assertEquals("2", parser.value());
+
+        // empty line
+        assertTrue(parser.nextLine());
+        assertFalse(parser.nextField());
+
+        assertTrue(parser.nextLine());
+        assertTrue(parser.nextField());
+        assertEquals("unterminated", parser.value());
+        assertFalse(parser.nextLine());
+    }
+
+    @Test
+    public void roundTripTest()
+    {
+        LoggerContext context = new LoggerContext();
+        Logger logger = context.getLogger("loggerName");
+
+        LogFmtLayout layout = new LogFmtLayout();
+        layout.setContext(context);
+        layout.setFields("level, msg, custom");
+        LogFmtEncoder encoder = new LogFmtEncoder();
+        encoder.setContext(context);
+        encoder.setLayout(layout);
+        encoder.start();
+
+        StringBuilder text = new StringBuilder();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        List<Map<String, String>> expected = new ArrayList<>();
+        for ( String value : VALUES )
+        {
+            LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, value, null, null);
+            event.setMarker(LogFmtMarker.with("key", value).and("count", 42).and("ratio", 0.25));
+            text.append(layout.doLayout(event));
+            byte[] line = encoder.encode(event);
+            bytes.write(line, 0, line.length);
+
+            Map<String, String> fields = new LinkedHashMap<>();
+            fields.put("level", "info");
+            fields.put("msg", value);
+            fields.put("key", value);
+            fields.put("count", "42");
+            fields.put("ratio", "0.25");
+            expected.add(fields);
+        }
+
+        assertEquals(expected, parse(new LogFmtParser().reset(text)));
+        assertEquals(expected, parse(new LogFmtParser().reset(ByteBuffer.wrap(bytes.toByteArray()))));
+        assertEquals(expected, parse(new LogFmtParser().reset(ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)))));
+    }
+
+    private static List<Map<String, String>> parse(LogFmtParser parser)
+    {
+        List<Map<String, String>> lines = new ArrayList<>();
+        while ( parser.nextLine() )
+        {
+            Map<String, String> fields = new LinkedHashMap<>();
+            while ( parser.nextField() )
+            {
+                fields.put(parser.key(), parser.value());
+                assertTrue(parser.keyEquals(parser.key()));
+                assertTrue(parser.valueEquals(parser.value()));
+            }
+            lines.add(fields);
+        }
+        return lines;
+    }
+}
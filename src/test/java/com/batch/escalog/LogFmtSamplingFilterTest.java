@@ -0,0 +1,164 @@
+package com.batch.escalog;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.spi.FilterReply;
+import org.junit.Test;
+
+import static com.batch.escalog.LogFmtMarker.with;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests LogFmtSamplingFilter
+ */
+public class LogFmtSamplingFilterTest
+{
+    private final Logger logger = new LoggerContext().getLogger("loggerName");
+
+    @Test
+    public void sampleRateTest()
+    {
+        LogFmtSamplingFilter filter = new LogFmtSamplingFilter();
+        filter.setSampleRate(10);
+        filter.setAlwaysKeep("status>=500, route=/health");
+        filter.start();
+
+        int kept = 0;
+        for ( int i = 0; i < 10_000; i++ )
+        {
+            LogFmtMarker marker = with("route", "/users").and("status", 200);
+            if ( decide(filter, marker, Level.INFO) == FilterReply.NEUTRAL )
+            {
+                kept++;
+                assertEquals(10L, LogFmtSamplingFilter.sampleRateOf(marker));
+                assertEquals(-1, marker.indexOf("sample_rate"));
+            }
+        }
+        assertTrue("kept " + kept, kept > 700 && kept < 1300);
+
+        // always kept
+        for ( int i = 0; i < 100; i++ )
+        {
+            assertEquals(FilterReply.NEUTRAL, decide(filter, with("route", "/users").and("status", 503), Level.INFO));
+            assertEquals(FilterReply.NEUTRAL, decide(filter, with("route", "/health").and("status", "200"), Level.INFO));
+            assertEquals(FilterReply.NEUTRAL, decide(filter, with("route", "/users"), Level.WARN));
+        }
+        LogFmtMarker kept500 = with("status", 500L);
+        decide(filter, kept500, Level.INFO);
+        assertEquals(0L, LogFmtSamplingFilter.sampleRateOf(kept500));
+    }
+
+    @Test
+    public void rateLimitTest()
+    {
+        LogFmtSamplingFilter filter = new LogFmtSamplingFilter();
+        filter.setKey("route");
+        filter.setRatePerSecond(0.001);
+        filter.setBurst(2);
+        filter.start();
+
+        // each route has its own limit
+        assertEquals(FilterReply.NEUTRAL, decide(filter, with("route", "/a"), Level.INFO));
+        assertEquals(FilterReply.NEUTRAL, decide(filter, with("route", "/a"), Level.INFO));
+        assertEquals(FilterReply.DENY, decide(filter, with("route", "/a"), Level.INFO));
+        assertEquals(FilterReply.NEUTRAL, decide(filter, with("route", "/b"), Level.INFO));
+        assertEquals(FilterReply.DENY, decide(filter, with("route", "/a"), Level.INFO));
+
+        // events below the level of the logger don't use tokens
+        logger.setLevel(Level.INFO);
+        for ( int i = 0; i < 10; i++ )
+        {
+            assertEquals(FilterReply.NEUTRAL, decide(filter, with("route", "/c"), Level.DEBUG));
+        }
+        assertEquals(FilterReply.NEUTRAL, decide(filter, with("route", "/c"), Level.INFO));
+        assertEquals(FilterReply.NEUTRAL, decide(filter, with("route", "/c"), Level.INFO));
+        assertEquals(FilterReply.DENY, decide(filter, with("route", "/c"), Level.INFO));
+
+        // not LogFmt events are not sampled
+        assertEquals(FilterReply.NEUTRAL, filter.decide(null, logger, Level.INFO, "message", null, null));
+    }
+
+    @Test
+    public void sharedMarkerTest()
+    {
+        LogFmtLayout layout = new LogFmtLayout();
+        layout.setFields("msg, custom");
+
+        LogFmtSamplingFilter filter = new LogFmtSamplingFilter();
+        filter.setSampleRate(2);
+        filter.start();
+
+        // the marker is never modified, each decision has its own weight
+        LogFmtMarker shared = with("route", "/users");
+        keep(filter, shared);
+        assertEquals("msg=message route=/users sample_rate=2\n", layout.doLayout(event(shared, Level.INFO)));
+
+        // not sampled, the previous weight is forgotten
+        assertEquals(FilterReply.NEUTRAL, decide(filter, shared, Level.WARN));
+        assertEquals("msg=message route=/users\n", layout.doLayout(event(shared, Level.WARN)));
+        filter.stop();
+
+        LogFmtSamplingFilter otherFilter = new LogFmtSamplingFilter();
+        otherFilter.setSampleRate(5);
+        otherFilter.start();
+        keep(otherFilter, shared);
+        assertEquals("msg=message route=/users sample_rate=5\n", layout.doLayout(event(shared, Level.INFO)));
+        assertEquals(1, shared.size());
+        otherFilter.stop();
+    }
+
+    @Test
+    public void chainedFiltersTest()
+    {
+        LogFmtLayout layout = new LogFmtLayout();
+        layout.setFields("msg, custom");
+
+        LogFmtSamplingFilter filter = new LogFmtSamplingFilter();
+        filter.setSampleRate(2);
+        filter.start();
+        LogFmtSamplingFilter debugFilter = new LogFmtSamplingFilter();
+        debugFilter.setLevel("DEBUG");
+        debugFilter.setSampleRate(3);
+        debugFilter.start();
+
+        // the second filter does not sample INFO events, and keeps the weight of the first one
+        LogFmtMarker marker = with("route", "/users");
+        keep(filter, marker);
+        assertEquals(FilterReply.NEUTRAL, decide(debugFilter, marker, Level.INFO));
+        assertEquals("msg=message route=/users sample_rate=2\n", layout.doLayout(event(marker, Level.INFO)));
+
+        // both keep it
+        logger.setLevel(Level.DEBUG);
+        while ( decide(filter, marker, Level.DEBUG) != FilterReply.NEUTRAL || decide(debugFilter, marker, Level.DEBUG) != FilterReply.NEUTRAL )
+        {
+            // dropped by one of them, decides again
+        }
+        assertEquals("msg=message route=/users sample_rate=6\n", layout.doLayout(event(marker, Level.DEBUG)));
+
+        filter.stop();
+        debugFilter.stop();
+    }
+
+    private void keep(LogFmtSamplingFilter filter, LogFmtMarker marker)
+    {
+        while ( decide(filter, marker, Level.INFO) != FilterReply.NEUTRAL )
+        {
+            // dropped, decides again
+        }
+    }
+
+    private LoggingEvent event(LogFmtMarker marker, Level level)
+    {
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, level, "message", null, null);
+        event.setMarker(marker);
+        return event;
+    }
+
+    private FilterReply decide(LogFmtSamplingFilter filter, LogFmtMarker marker, Level level)
+    {
+        return filter.decide(marker, logger, level, "message", null, null);
+    }
+}
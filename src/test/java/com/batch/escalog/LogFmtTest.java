@@ -1,5 +1,6 @@
 package com.batch.escalog;
 
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.spi.ILoggingEvent;
@@ -7,11 +8,18 @@ import ch.qos.logback.core.ConsoleAppender;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MarkerFactory;
 
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Tests the log lines output by LogFmt
@@ -24,6 +32,8 @@ public class LogFmtTest
 
     private LogFmt logger;
 
+    private Logger basicLogger;
+
 
     @Before
     public void init()
@@ -38,7 +48,7 @@ public class LogFmtTest
         appender.setContext(ctx);
         appender.start();
 
-        Logger basicLogger = ctx.getLogger(LogFmtTest.class);
+        this.basicLogger = ctx.getLogger(LogFmtTest.class);
         basicLogger.addAppender(appender);
         this.logger = LogFmt.from(basicLogger);
 
@@ -62,6 +72,102 @@ public class LogFmtTest
 
     }
 
+    @Test
+    public void levelFirstTest()
+    {
+        basicLogger.setLevel(Level.INFO);
+
+        logger.atInfo().and("key1", "value1").log("here is the {}", "message");
+        String line = getEndLog(layoutProducer.consume());
+        assertEquals("msg=\"here is the message\" key1=value1\n", line);
+
+        logger.atWarn().and("key1", "value1").log("warning");
+        line = layoutProducer.consume();
+        assertTrue(line.contains(" level=warning "));
+
+        // disabled levels share the same no-op builder, and log nothing
+        LogFmtBuilder builder = logger.atDebug();
+        assertSame(builder, logger.atTrace());
+        builder.and("key1", "value1").log("here is the message");
+        builder.and("key2", "value2").info("here is the message");
+        assertNull(layoutProducer.consume());
+    }
+
+    @Test
+    public void lazyValueTest()
+    {
+        basicLogger.setLevel(Level.INFO);
+        AtomicInteger evaluations = new AtomicInteger();
+        Supplier<String> expensive = () -> "value" + evaluations.incrementAndGet();
+
+        logger.with("key1", expensive).debug("filtered out");
+        assertNull(layoutProducer.consume());
+        assertEquals(0, evaluations.get());
+
+        LogFmtMarker marker = LogFmtMarker.with("key1", expensive);
+        basicLogger.info(marker, "here is the message");
+        basicLogger.info(marker, "here is the message");
+        assertEquals("msg=\"here is the message\" key1=value1\n", getEndLog(layoutProducer.consume()));
+        assertEquals("msg=\"here is the message\" key1=value1\n", getEndLog(layoutProducer.consume()));
+        assertEquals(1, evaluations.get());
+    }
+
+    @Test
+    public void packageSourceTest()
+    {
+        logger.info("from caller data");
+        assertTrue(layoutProducer.consume().contains(" package=com.batch.escalog module=LogFmtTest "));
+
+        layoutProducer.setPackageSource("loggerName");
+        logger.info("from logger name");
+        assertTrue(layoutProducer.consume().contains(" package=com.batch.escalog module=LogFmtTest "));
+
+        layoutProducer.setPackageSource("none");
+        logger.info("no package");
+        String line = layoutProducer.consume();
+        assertFalse(line.contains("package="));
+        assertFalse(line.contains("module="));
+    }
+
+    @Test
+    public void bindTest()
+    {
+        LogFmt requestLogger = logger.bind("request_id", "ab12").bind("path", "/users list");
+        LogFmt userLogger = requestLogger.bind("user", 42).bind("request_id", "cd34");
+
+        requestLogger.info("plain");
+        assertEquals("msg=plain request_id=ab12 path=\"/users list\"\n", getEndLog(layoutProducer.consume()));
+
+        // bound fields come first, the parent logger is unchanged
+        userLogger.with("status", 200).info("with fields");
+        assertEquals("msg=\"with fields\" request_id=cd34 path=\"/users list\" user=42 status=200\n", getEndLog(layoutProducer.consume()));
+        logger.info("unbound");
+        assertEquals("msg=unbound\n", getEndLog(layoutProducer.consume()));
+
+        requestLogger.atWarn().and("retry", true).log("builder");
+        assertEquals("msg=builder request_id=ab12 path=\"/users list\" retry=true\n", getEndLog(layoutProducer.consume()));
+
+        // the marker given by the caller is not modified
+        LogFmtMarker marker = LogFmtMarker.with("key", "value");
+        requestLogger.info(marker, "marker");
+        assertEquals("msg=marker request_id=ab12 path=\"/users list\" key=value\n", getEndLog(layoutProducer.consume()));
+        logger.info(marker, "marker");
+        assertEquals("msg=marker key=value\n", getEndLog(layoutProducer.consume()));
+
+        // other markers carry them too
+        requestLogger.info(MarkerFactory.getMarker("AUDIT"), "audit");
+        assertEquals("msg=audit request_id=ab12 path=\"/users list\"\n", getEndLog(layoutProducer.consume()));
+
+        // native keys follow the reserved key policy
+        logger.bind("level", "high").bind("job", "import").info("native key");
+        assertEquals("msg=\"native key\" job=import\n", getEndLog(layoutProducer.consume()));
+
+        // size limits apply to the bound values too
+        layoutProducer.setMaxValueLength(6);
+        requestLogger.info("limits");
+        assertEquals("msg=limits request_id=ab12 path=\"/users…[+5]\"\n", getEndLog(layoutProducer.consume()));
+    }
+
     /**
      * Gets the end of the end log (from msg=)
      */